@@ -0,0 +1,99 @@
+package ar.edu.itba.pdc.bench;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compares two JMH result files, printing for every benchmark its throughput
+ * and the bytes it allocates per operation in both, and how much they
+ * changed.
+ *
+ * Run with: mvn -P benchmarks exec:java
+ * -Dexec.mainClass=ar.edu.itba.pdc.bench.BaselineComparison
+ * -Dexec.args="src/bench/results/baseline.json target/jmh-result.json"
+ */
+
+public class BaselineComparison {
+
+	private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.out.println("Usage: BaselineComparison <baseline.json> <result.json>");
+			return;
+		}
+		Map<String, double[]> baseline = read(args[0]);
+		Map<String, double[]> current = read(args[1]);
+
+		System.out.println(String.format("%-70s %14s %14s %8s %10s %10s",
+				"Benchmark", "Baseline op/s", "Current op/s", "Change",
+				"B/op", "Base B/op"));
+		for (Map.Entry<String, double[]> entry : current.entrySet()) {
+			double[] now = entry.getValue();
+			double[] before = baseline.get(entry.getKey());
+			System.out.println(String.format("%-70s %14s %14.0f %8s %10.1f %10s",
+					entry.getKey(),
+					(before == null) ? "-" : String.format("%.0f", before[0]),
+					now[0], (before == null) ? "new" : String.format(
+							"%+.1f%%", (now[0] / before[0] - 1) * 100),
+					now[1], (before == null) ? "-" : String.format("%.1f",
+							before[1])));
+		}
+	}
+
+	/**
+	 * Returns the throughput and bytes allocated per operation of every
+	 * benchmark in the file, keyed by name and parameters.
+	 */
+
+	private static Map<String, double[]> read(String path) throws Exception {
+		String json = new String(Files.readAllBytes(new File(path).toPath()),
+				Charset.forName("UTF-8"));
+		JSONArray results = new JSONArray(json);
+		Map<String, double[]> scores = new LinkedHashMap<String, double[]>();
+		for (int i = 0; i < results.length(); i++) {
+			JSONObject result = results.getJSONObject(i);
+			double allocation = Double.NaN;
+			JSONObject secondary = result.optJSONObject("secondaryMetrics");
+			if (secondary != null) {
+				Iterator<?> keys = secondary.keys();
+				while (keys.hasNext()) {
+					String key = (String) keys.next();
+					if (key.endsWith(ALLOCATION))
+						allocation = secondary.getJSONObject(key).getDouble(
+								"score");
+				}
+			}
+			scores.put(name(result), new double[] {
+					result.getJSONObject("primaryMetric").getDouble("score"),
+					allocation });
+		}
+		return scores;
+	}
+
+	private static String name(JSONObject result) throws JSONException {
+		String benchmark = result.getString("benchmark");
+		benchmark = benchmark.substring(benchmark.lastIndexOf('.',
+				benchmark.lastIndexOf('.') - 1) + 1);
+		JSONObject params = result.optJSONObject("params");
+		if (params == null)
+			return benchmark;
+		List<String> values = new ArrayList<String>();
+		Iterator<?> keys = params.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			values.add(key + "=" + params.getString(key));
+		}
+		return benchmark + values;
+	}
+}
@@ -0,0 +1,118 @@
+package ar.edu.itba.pdc.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ar.edu.itba.pdc.proxy.ChannelBuffers;
+import ar.edu.itba.pdc.proxy.enumerations.BufferType;
+
+/**
+ * Queues stanzas on a channel's write side and writes them with a single
+ * gathering write, and grows the read buffer the way ProxyConnection does
+ * when a stanza does not fit in it.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelBuffersBenchmark {
+
+	/* Stanzas queued before every write */
+	private static final int QUEUED = 16;
+
+	@Param({ "256", "4096", "65536" })
+	public int stanzaSize;
+
+	private ChannelBuffers buffers;
+	private byte[] stanza;
+	private GatheringByteChannel channel = new NullChannel();
+
+	@Setup
+	public void setup() {
+		buffers = new ChannelBuffers();
+		stanza = new byte[stanzaSize];
+	}
+
+	@TearDown
+	public void tearDown() {
+		buffers.release();
+	}
+
+	@Benchmark
+	public long queueAndWrite() throws Exception {
+		for (int i = 0; i < QUEUED; i++)
+			buffers.writeToBuffer(BufferType.write, stanza);
+		long written = 0;
+		while (buffers.hasInformationFor(BufferType.write))
+			written += buffers.writeTo(channel);
+		return written;
+	}
+
+	@Benchmark
+	public int expandRead() {
+		ChannelBuffers read = new ChannelBuffers();
+		ByteBuffer buf = read.getBuffer(BufferType.read);
+		int remaining = stanzaSize;
+		while (remaining > 0) {
+			int chunk = Math.min(remaining, buf.remaining());
+			buf.position(buf.position() + chunk);
+			remaining -= chunk;
+			if (!buf.hasRemaining()) {
+				read.expandBuffer(BufferType.read);
+				buf = read.getBuffer(BufferType.read);
+			}
+		}
+		int capacity = buf.capacity();
+		read.release();
+		return capacity;
+	}
+
+	/**
+	 * Channel that takes every byte it is given, as a socket with room in
+	 * its send buffer would.
+	 */
+
+	private static class NullChannel implements GatheringByteChannel {
+
+		public int write(ByteBuffer src) {
+			int written = src.remaining();
+			src.position(src.limit());
+			return written;
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long written = 0;
+			for (int i = offset; i < offset + length; i++)
+				written += write(srcs[i]);
+			return written;
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
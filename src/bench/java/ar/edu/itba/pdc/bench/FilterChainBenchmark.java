@@ -0,0 +1,73 @@
+package ar.edu.itba.pdc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ar.edu.itba.pdc.filters.Filter;
+import ar.edu.itba.pdc.filters.SilentUsersFilter;
+import ar.edu.itba.pdc.filters.StatisticsFilter;
+import ar.edu.itba.pdc.filters.TransformationFilter;
+import ar.edu.itba.pdc.jabber.Message;
+import ar.edu.itba.pdc.stanzas.Stanza;
+import ar.edu.itba.pdc.stanzas.StanzaType;
+
+/**
+ * Applies the filters of a ProxyConnection, in the same order, to a chat
+ * message. Every operation filters a new stanza, since filters change it.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterChainBenchmark {
+
+	private static final String SILENCED = "usuario1@jabber.org";
+	private static final String BODY = "Hi Bob, are we still meeting at 5 & going to the movies?";
+
+	@Param({ "false", "true" })
+	public boolean transformation;
+
+	private Filter[] filters;
+
+	@Setup
+	public void setup() {
+		SilentUsersFilter.getInstance().propertyChanged("silenceuser",
+				SILENCED);
+		TransformationFilter.getInstance().setEnabled(transformation);
+		filters = new Filter[] { SilentUsersFilter.getInstance(),
+				StatisticsFilter.getInstance(),
+				TransformationFilter.getInstance() };
+	}
+
+	@Benchmark
+	public Stanza chain() {
+		return apply(new Message(BODY, "alice@example.com/home",
+				"bob@example.com"));
+	}
+
+	@Benchmark
+	public Stanza silencedSender() {
+		return apply(new Message(BODY, SILENCED + "/home", "bob@example.com"));
+	}
+
+	private Stanza apply(Message message) {
+		Stanza stanza = new Stanza(StanzaType.message, message);
+		for (Filter filter : filters)
+			filter.apply(stanza);
+		return stanza;
+	}
+}
@@ -0,0 +1,81 @@
+package ar.edu.itba.pdc.bench;
+
+/**
+ * Log-linear histogram of positive values: exact below 64, and within about
+ * 3% above, in a fixed amount of memory no matter how many values it
+ * records. Not thread safe, every thread keeps its own and they are merged.
+ */
+
+public class LatencyHistogram {
+
+	/* Values below this one get a bucket each */
+	private static final int LINEAR = 64;
+	/* Buckets for every power of two above LINEAR */
+	private static final int SUB_BUCKETS = 32;
+	private static final int SIZE = LINEAR + 58 * SUB_BUCKETS;
+
+	private long[] counts = new long[SIZE];
+	private long total = 0;
+	private long max = 0;
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts[index(value)]++;
+		total++;
+		max = Math.max(max, value);
+	}
+
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < SIZE; i++)
+			counts[i] += other.counts[i];
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	public long getCount() {
+		return total;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the value below which the given fraction of the recorded
+	 * values are, rounded up to the top of its bucket.
+	 *
+	 * @param fraction
+	 *            Between 0 and 1, like 0.99 for the 99th percentile.
+	 */
+
+	public long percentile(double fraction) {
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < SIZE; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(max, upperBound(i));
+		}
+		return max;
+	}
+
+	private static int index(long value) {
+		if (value < LINEAR)
+			return (int) value;
+		/* Keeps the 6 most significant bits, the first one is always set */
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+		return LINEAR + (shift - 1) * SUB_BUCKETS
+				+ (int) ((value >> shift) - SUB_BUCKETS);
+	}
+
+	private static long upperBound(int index) {
+		if (index < LINEAR)
+			return index;
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long mantissa = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,198 @@
+package ar.edu.itba.pdc.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Simulated XMPP client. It goes through the PLAIN handshake the proxy
+ * expects, announces its presence and then keeps a fixed amount of messages
+ * in flight: every message that comes back records its round trip time and
+ * is replaced by a new one. Every PRESENCE_EVERY messages it also sends a
+ * presence update.
+ */
+
+public class LoadClient implements Runnable {
+
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
+	private static final String STREAM = "<?xml version='1.0'?><stream:stream to='localhost' "
+			+ "xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+	private static final String PRESENCE = "<presence><status>load</status></presence>";
+	private static final int PRESENCE_EVERY = 50;
+
+	private final String user;
+	private final int port;
+	private final int window;
+	private final String padding;
+	private final long recordFrom;
+	private final long stopAt;
+
+	private LatencyHistogram latencies = new LatencyHistogram();
+	private long messages = 0;
+	private long presences = 0;
+	private long sent = 0;
+	private Exception failure;
+
+	/**
+	 * @param user
+	 *            Name to authenticate with.
+	 * @param port
+	 *            Proxy client port, on localhost.
+	 * @param window
+	 *            Messages kept in flight.
+	 * @param bodyLength
+	 *            Characters in every message body.
+	 * @param recordFrom
+	 *            Round trips of messages sent before this time (System
+	 *            nanoTime) are not recorded.
+	 * @param stopAt
+	 *            Time (System nanoTime) after which no more messages are sent.
+	 */
+
+	public LoadClient(String user, int port, int window, int bodyLength,
+			long recordFrom, long stopAt) {
+		this.user = user;
+		this.port = port;
+		this.window = window;
+		this.recordFrom = recordFrom;
+		this.stopAt = stopAt;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < bodyLength; i++)
+			sb.append((char) ('a' + i % 26));
+		this.padding = sb.toString();
+	}
+
+	public void run() {
+		Socket socket = null;
+		try {
+			socket = new Socket("localhost", port);
+			socket.setTcpNoDelay(true);
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			StringBuilder pending = new StringBuilder();
+
+			/* The proxy wants the stream header and the auth in separate reads */
+			send(out, STREAM);
+			readUntil(in, pending, "</stream:features>");
+			String credentials = new String(Base64.encodeBase64(("\0" + user
+					+ "\0secret").getBytes(ASCII)), ASCII);
+			send(out, "<auth xmlns='urn:ietf:params:xml:ns:xmpp-sasl' mechanism='PLAIN'>"
+					+ credentials + "</auth>");
+			readUntil(in, pending, "<success");
+			pending.setLength(0);
+
+			send(out, PRESENCE);
+			StringBuilder burst = new StringBuilder();
+			for (int i = 0; i < window; i++)
+				burst.append(nextMessage());
+			send(out, burst.toString());
+			long inFlight = window;
+
+			byte[] buf = new byte[16 * 1024];
+			while (inFlight > 0) {
+				int read = in.read(buf);
+				if (read == -1)
+					throw new IOException("Proxy closed the connection");
+				pending.append(new String(buf, 0, read, ASCII));
+				int echoed = received(pending);
+				inFlight -= echoed;
+				if (echoed > 0 && System.nanoTime() < stopAt) {
+					StringBuilder replies = new StringBuilder();
+					for (int i = 0; i < echoed; i++)
+						replies.append(nextMessage());
+					send(out, replies.toString());
+					inFlight += echoed;
+				}
+			}
+		} catch (Exception e) {
+			failure = e;
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					failure = (failure == null) ? e : failure;
+				}
+			}
+		}
+	}
+
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	public long getMessages() {
+		return messages;
+	}
+
+	public long getPresences() {
+		return presences;
+	}
+
+	public Exception getFailure() {
+		return failure;
+	}
+
+	private String nextMessage() {
+		sent++;
+		String message = "<message to='echo@localhost' type='chat'><body>"
+				+ System.nanoTime() + " " + padding + "</body></message>";
+		if (sent % PRESENCE_EVERY == 0)
+			return message + PRESENCE;
+		return message;
+	}
+
+	/**
+	 * Takes every complete message and presence off the given text, recording
+	 * the round trip of the messages, and returns how many messages there
+	 * were.
+	 */
+
+	private int received(StringBuilder pending) {
+		int echoed = 0;
+		int consumed = 0;
+		long now = System.nanoTime();
+		while (true) {
+			int message = pending.indexOf("</message>", consumed);
+			int presence = pending.indexOf("</presence>", consumed);
+			if (message == -1 && presence == -1)
+				break;
+			if (presence == -1 || (message != -1 && message < presence)) {
+				int body = pending.indexOf("<body>", consumed) + "<body>".length();
+				long stamp = Long.parseLong(pending.substring(body,
+						pending.indexOf(" ", body)));
+				if (stamp >= recordFrom) {
+					latencies.record((now - stamp) / 1000);
+					messages++;
+				}
+				echoed++;
+				consumed = message + "</message>".length();
+			} else {
+				presences++;
+				consumed = presence + "</presence>".length();
+			}
+		}
+		pending.delete(0, consumed);
+		return echoed;
+	}
+
+	private void send(OutputStream out, String stanzas) throws IOException {
+		out.write(stanzas.getBytes(ASCII));
+		out.flush();
+	}
+
+	private void readUntil(InputStream in, StringBuilder pending, String token)
+			throws IOException {
+		byte[] buf = new byte[4096];
+		while (pending.indexOf(token) == -1) {
+			int read = in.read(buf);
+			if (read == -1)
+				throw new IOException("Proxy closed the connection during the handshake");
+			pending.append(new String(buf, 0, read, ASCII));
+		}
+	}
+}
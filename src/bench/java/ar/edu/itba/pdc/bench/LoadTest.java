@@ -0,0 +1,236 @@
+package ar.edu.itba.pdc.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ar.edu.itba.pdc.filters.Multiplexing;
+import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.metrics.Metrics;
+import ar.edu.itba.pdc.nio.DispatcherHandler;
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
+
+/**
+ * End to end load test: starts one or more XMPPServerStubs and, unless told
+ * otherwise, the proxy in this same JVM pointing to them, and then runs a
+ * number of LoadClients through the proxy.
+ *
+ * Reports message throughput, round trip latency percentiles and, when the
+ * proxy runs embedded, the CPU time of the proxy threads, the heap in use
+ * and how many sessions each stub got.
+ * The heap is the whole JVM's, but the clients and the stub keep little
+ * more than their sockets.
+ *
+ * Arguments are key=value pairs, all optional:
+ *
+ * <ul>
+ * <li>connections: simulated clients (100)</li>
+ * <li>duration: seconds measured (30)</li>
+ * <li>warmup: seconds run before measuring (5)</li>
+ * <li>window: messages every client keeps in flight (1)</li>
+ * <li>body: characters in every message body (64)</li>
+ * <li>port: proxy client port (5678)</li>
+ * <li>serverPort: port the first stub listens on (5222)</li>
+ * <li>servers: stubs, on consecutive ports, that make up the upstream pool
+ * of the embedded proxy (1)</li>
+ * <li>balancing: leastConnections or consistentHashing
+ * (leastConnections)</li>
+ * <li>proxy: embedded, or external to use an already running proxy whose
+ * default server is localhost (embedded)</li>
+ * </ul>
+ *
+ * Run it with <i>mvn -P benchmarks test-compile exec:exec@load
+ * -Dload.args="connections=500 duration=60"</i>.
+ */
+
+public class LoadTest {
+
+	private static final String[] PROXY_THREADS = { "proxy", "reactor-",
+			"pool-", "log-writer" };
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parse(args);
+		int connections = intOption(options, "connections", 100);
+		int duration = intOption(options, "duration", 30);
+		int warmup = intOption(options, "warmup", 5);
+		int window = intOption(options, "window", 1);
+		int body = intOption(options, "body", 64);
+		int port = intOption(options, "port", 5678);
+		int serverPort = intOption(options, "serverPort", 5222);
+		int servers = intOption(options, "servers", 1);
+		String balancing = options.get("balancing");
+		boolean embedded = !"external".equals(options.get("proxy"));
+
+		List<XMPPServerStub> stubs = new ArrayList<XMPPServerStub>();
+		StringBuilder upstreams = new StringBuilder("localhost=");
+		for (int i = 0; i < servers; i++) {
+			XMPPServerStub stub = new XMPPServerStub(serverPort + i);
+			daemon(stub, "stub-" + i).start();
+			stubs.add(stub);
+			upstreams.append((i == 0) ? "" : ",").append("localhost:")
+					.append(serverPort + i);
+		}
+		if (embedded)
+			startProxy(port, upstreams.toString(), balancing);
+
+		long start = System.nanoTime();
+		long recordFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+		long stopAt = recordFrom + TimeUnit.SECONDS.toNanos(duration);
+		List<LoadClient> clients = new ArrayList<LoadClient>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < connections; i++) {
+			LoadClient client = new LoadClient("load" + i, port, window, body,
+					recordFrom, stopAt);
+			Thread thread = daemon(client, "client-" + i);
+			clients.add(client);
+			threads.add(thread);
+			thread.start();
+		}
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		sleepUntil(recordFrom);
+		Map<Long, Long> cpuBefore = proxyCpuTimes(threadBean);
+		long maxHeap = 0;
+		while (System.nanoTime() < stopAt) {
+			maxHeap = Math.max(maxHeap, memoryBean.getHeapMemoryUsage()
+					.getUsed());
+			Thread.sleep(Math.min(500,
+					TimeUnit.NANOSECONDS.toMillis(stopAt - System.nanoTime()) + 1));
+		}
+		Map<Long, Long> cpuAfter = proxyCpuTimes(threadBean);
+		long endHeap = memoryBean.getHeapMemoryUsage().getUsed();
+
+		long deadline = System.currentTimeMillis() + 30000;
+		for (Thread thread : threads)
+			thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+
+		LatencyHistogram latencies = new LatencyHistogram();
+		long messages = 0;
+		long presences = 0;
+		int failures = 0;
+		for (LoadClient client : clients) {
+			latencies.add(client.getLatencies());
+			messages += client.getMessages();
+			presences += client.getPresences();
+			if (client.getFailure() != null) {
+				if (failures++ == 0)
+					System.out.println("First failure: " + client.getFailure());
+			}
+		}
+
+		System.out.printf("connections=%d window=%d body=%d duration=%ds%n",
+				connections, window, body, duration);
+		System.out.printf("messages: %d (%.1f/s), presences: %d, failed clients: %d%n",
+				messages, messages / (double) duration, presences, failures);
+		System.out.printf("round trip (us): p50=%d p99=%d p999=%d max=%d%n",
+				latencies.percentile(0.5), latencies.percentile(0.99),
+				latencies.percentile(0.999), latencies.getMax());
+		if (embedded) {
+			long cpu = 0;
+			for (Map.Entry<Long, Long> entry : cpuAfter.entrySet()) {
+				Long before = cpuBefore.get(entry.getKey());
+				cpu += entry.getValue() - ((before == null) ? 0 : before);
+			}
+			System.out.printf("proxy cpu: %.2fs (%.0f%% of a core)%n", cpu / 1e9,
+					100.0 * cpu / TimeUnit.SECONDS.toNanos(duration));
+			System.out.printf("heap used: max %.1f MB, end %.1f MB%n",
+					maxHeap / 1048576.0, endHeap / 1048576.0);
+			System.out.print(Metrics.getInstance().report(
+					"upstream.localhost."));
+		}
+		for (XMPPServerStub stub : stubs)
+			stub.close();
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Starts the proxy on its own thread, sending every client to the pool
+	 * of stubs, and waits for it to accept connections.
+	 */
+
+	private static void startProxy(int port, String upstreams,
+			String balancing) throws InterruptedException {
+		XMPPLogger.getInstance().configure(ConfigurationCommands.getInstance());
+		/* Only in memory, the configuration file is left as it is */
+		Multiplexing multiplexing = Multiplexing.getInstance();
+		multiplexing.propertyChanged("defaultServer", "localhost");
+		multiplexing.propertyChanged("upstreams", upstreams);
+		if (balancing != null)
+			multiplexing.propertyChanged("upstreamBalancing", balancing);
+		daemon(new Runnable() {
+			public void run() {
+				try {
+					new DispatcherHandler().run();
+				} catch (IOException e) {
+					System.out.println("Cannot start the proxy: " + e);
+				}
+			}
+		}, "proxy").start();
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+		throw new IllegalStateException("Proxy is not listening on " + port);
+	}
+
+	private static Map<Long, Long> proxyCpuTimes(ThreadMXBean bean) {
+		Map<Long, Long> times = new HashMap<Long, Long>();
+		for (ThreadInfo info : bean.getThreadInfo(bean.getAllThreadIds())) {
+			if (info == null || !isProxyThread(info.getThreadName()))
+				continue;
+			long time = bean.getThreadCpuTime(info.getThreadId());
+			if (time != -1)
+				times.put(info.getThreadId(), time);
+		}
+		return times;
+	}
+
+	private static boolean isProxyThread(String name) {
+		for (String prefix : PROXY_THREADS)
+			if (name.startsWith(prefix))
+				return true;
+		return false;
+	}
+
+	private static Thread daemon(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private static void sleepUntil(long nanoTime) throws InterruptedException {
+		long left;
+		while ((left = nanoTime - System.nanoTime()) > 0)
+			Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+	}
+
+	private static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq == -1)
+				throw new IllegalArgumentException("Expected key=value, got " + arg);
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		return options;
+	}
+
+	private static int intOption(Map<String, String> options, String key,
+			int defaultValue) {
+		String value = options.get(key);
+		return (value == null) ? defaultValue : Integer.parseInt(value);
+	}
+}
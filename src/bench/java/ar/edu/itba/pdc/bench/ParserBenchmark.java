@@ -0,0 +1,59 @@
+package ar.edu.itba.pdc.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ar.edu.itba.pdc.parser.XMPPParser;
+import ar.edu.itba.pdc.stanzas.Stanza;
+
+/**
+ * Parses a read buffer holding a batch of stanzas, the way ProxyConnection
+ * does after every read: parse what was read and compact the buffer.
+ *
+ * Every operation parses the whole batch (see <i>Stanzas</i> for the mixes).
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Param({ "chat", "mixed", "large" })
+	public String mix;
+
+	private XMPPParser parser;
+	private ByteBuffer readBuffer;
+	private byte[] batch;
+
+	@Setup
+	public void setup() {
+		batch = Stanzas.batch(mix).getBytes(Charset.forName("UTF-8"));
+		readBuffer = ByteBuffer.allocateDirect(batch.length);
+		parser = new XMPPParser();
+	}
+
+	@Benchmark
+	public List<Stanza> parse() {
+		readBuffer.put(batch);
+		List<Stanza> stanzas = parser.parse(readBuffer);
+		parser.compact(readBuffer);
+		return stanzas;
+	}
+}
@@ -0,0 +1,99 @@
+package ar.edu.itba.pdc.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ar.edu.itba.pdc.jabber.Message;
+import ar.edu.itba.pdc.parser.XMPPParser;
+import ar.edu.itba.pdc.proxy.BufferPool;
+import ar.edu.itba.pdc.stanzas.Stanza;
+import ar.edu.itba.pdc.stanzas.StanzaSerializer;
+
+/**
+ * Writes a message that a filter changed, which the StanzaSerializer builds
+ * from its fields, and one that no filter changed, whose original bytes are
+ * copied as they are. The buffers are given back to the pool, as once they
+ * are written to the channel. The changed message is also built as a String
+ * and encoded, as the proxy used to do, for comparison.
+ * The gc profiler the jmh execution runs with reports the bytes allocated
+ * for every message as gc.alloc.rate.norm.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+	@Param({ "64", "4096" })
+	public int bodyLength;
+
+	private StanzaSerializer serializer;
+	private BufferPool pool;
+	private Stanza changed;
+	private Stanza unchanged;
+
+	@Setup
+	public void setup() {
+		serializer = new StanzaSerializer();
+		pool = BufferPool.getInstance();
+		String xml = Stanzas.chat(bodyLength).replace("<message ",
+				"<message from='alice@example.com/home' ");
+		changed = parse(xml);
+		((Message) changed.getElement()).setMessage(((Message) changed
+				.getElement()).getMessage().toUpperCase());
+		unchanged = parse(xml);
+	}
+
+	@Benchmark
+	public int serialize() {
+		ByteBuffer out = serializer.serialize(changed);
+		int written = out.remaining();
+		pool.release(out);
+		return written;
+	}
+
+	@Benchmark
+	public int stringConcatenation() {
+		Message msg = (Message) changed.getElement();
+		StringBuffer xml = new StringBuffer();
+		xml.append("<message from='" + msg.getFrom() + "' to='" + msg.getTo()
+				+ "' type='" + msg.getType() + "'>");
+		xml.append("<body>" + msg.getMessage() + "</body>");
+		xml.append("</message>");
+		return xml.toString().getBytes().length;
+	}
+
+	@Benchmark
+	public int passthrough() {
+		ByteBuffer original = unchanged.getOriginalBytes();
+		ByteBuffer out = pool.acquire(original.remaining());
+		out.put(original);
+		out.flip();
+		int written = out.remaining();
+		pool.release(out);
+		return written;
+	}
+
+	private static Stanza parse(String xml) {
+		byte[] bytes = xml.getBytes(Charset.forName("UTF-8"));
+		ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+		buf.put(bytes);
+		return new XMPPParser().parse(buf).get(0);
+	}
+}
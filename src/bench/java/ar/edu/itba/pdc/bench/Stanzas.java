@@ -0,0 +1,65 @@
+package ar.edu.itba.pdc.bench;
+
+/**
+ * Stanzas used by the benchmarks, as they come from real clients.
+ */
+
+public class Stanzas {
+
+	public static final String CHAT = "<message to='bob@example.com' type='chat' id='purple1a2b3c'>"
+			+ "<active xmlns='http://jabber.org/protocol/chatstates'/>"
+			+ "<body>Hi Bob, are we still meeting at 5 &amp; going to the movies?</body></message>";
+
+	public static final String PRESENCE = "<presence><show>away</show><status>Out for lunch</status>"
+			+ "<priority>1</priority><c xmlns='http://jabber.org/protocol/caps' hash='sha-1' "
+			+ "node='http://pidgin.im/' ver='AcN1/PEN8nq7AHD+9jpxMV4U6YM='/></presence>";
+
+	public static final String IQ = "<iq type='get' id='purple4d5e6f' to='example.com'>"
+			+ "<ping xmlns='urn:xmpp:ping'/></iq>";
+
+	public static final String COMPOSING = "<message to='bob@example.com' type='chat' id='purple7a8b9c'>"
+			+ "<composing xmlns='http://jabber.org/protocol/chatstates'/></message>";
+
+	/**
+	 * Returns a chat message whose body has about the given amount of
+	 * characters.
+	 */
+
+	public static String chat(int bodyLength) {
+		StringBuilder body = new StringBuilder(bodyLength);
+		while (body.length() < bodyLength)
+			body.append("Lorem ipsum dolor sit amet, ");
+		return "<message to='bob@example.com' type='chat' id='purple0f0f0f'><body>"
+				+ body.substring(0, bodyLength) + "</body></message>";
+	}
+
+	/**
+	 * Returns a batch of stanzas of the given mix:
+	 * <ul>
+	 * <li><i>chat</i>: 16 short chat messages.</li>
+	 * <li><i>mixed</i>: 16 stanzas as a client sends them while chatting,
+	 * half messages, the rest chat states, presences and pings.</li>
+	 * <li><i>large</i>: a single message with a 16 KB body.</li>
+	 * </ul>
+	 */
+
+	public static String batch(String mix) {
+		StringBuilder batch = new StringBuilder();
+		if (mix.equals("chat")) {
+			for (int i = 0; i < 16; i++)
+				batch.append(CHAT);
+		} else if (mix.equals("mixed")) {
+			for (int i = 0; i < 4; i++) {
+				batch.append(CHAT).append(COMPOSING).append(CHAT)
+						.append(PRESENCE);
+				if (i % 2 == 0)
+					batch.append(IQ);
+			}
+		} else if (mix.equals("large")) {
+			batch.append(chat(16 * 1024));
+		} else {
+			throw new IllegalArgumentException("Unknown mix " + mix);
+		}
+		return batch.toString();
+	}
+}
@@ -0,0 +1,121 @@
+package ar.edu.itba.pdc.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal stand-in for an XMPP server. It answers the stream the proxy opens
+ * with its features, accepts any PLAIN authentication, and then sends every
+ * message and presence it gets back to the connection it came from.
+ *
+ * One thread per connection, which is enough to keep up with the proxy on
+ * loopback.
+ */
+
+public class XMPPServerStub implements Runnable {
+
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
+	private static final byte[] STREAM = ("<?xml version='1.0'?><stream:stream xmlns='jabber:client' "
+			+ "xmlns:stream='http://etherx.jabber.org/streams' id='stub' from='localhost' version='1.0'>"
+			+ "<stream:features><mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>"
+			+ "<mechanism>PLAIN</mechanism></mechanisms></stream:features>")
+			.getBytes(ASCII);
+	private static final byte[] SUCCESS = "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>"
+			.getBytes(ASCII);
+
+	private ServerSocket server;
+
+	public XMPPServerStub(int port) throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port), 1024);
+	}
+
+	public void run() {
+		int connections = 0;
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				}, "stub-" + connections++);
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		server.close();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			StringBuilder pending = new StringBuilder();
+			byte[] buf = new byte[16 * 1024];
+			boolean authenticated = false;
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				pending.append(new String(buf, 0, read, ASCII));
+				if (!authenticated) {
+					if (pending.indexOf("</auth>") != -1) {
+						out.write(SUCCESS);
+						authenticated = true;
+						pending.setLength(0);
+					} else if (pending.indexOf("<stream:stream") != -1) {
+						out.write(STREAM);
+						pending.setLength(0);
+					}
+					continue;
+				}
+				int consumed = echo(pending, out);
+				pending.delete(0, consumed);
+			}
+		} catch (IOException e) {
+			return;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends back every complete message and presence in the given text, in
+	 * a single write, and returns how much of it was used.
+	 */
+
+	private int echo(StringBuilder pending, OutputStream out)
+			throws IOException {
+		int consumed = 0;
+		while (true) {
+			int message = pending.indexOf("</message>", consumed);
+			int presence = pending.indexOf("</presence>", consumed);
+			int end;
+			if (message == -1 && presence == -1)
+				break;
+			if (presence == -1 || (message != -1 && message < presence))
+				end = message + "</message>".length();
+			else
+				end = presence + "</presence>".length();
+			consumed = end;
+		}
+		if (consumed > 0)
+			out.write(pending.substring(0, consumed).getBytes(ASCII));
+		return consumed;
+	}
+}
@@ -1,7 +0,0 @@
-package ar.edu.itba.pdc.exceptions;
-
-public class IncompleteElementsException extends Exception {
-	
-	private static final long serialVersionUID = 1L;
-
-}
@@ -1,48 +1,281 @@
 package ar.edu.itba.pdc.filters;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.nio.HostResolver;
+import ar.edu.itba.pdc.upstream.Endpoint;
+import ar.edu.itba.pdc.upstream.HealthChecker;
+import ar.edu.itba.pdc.upstream.UpstreamPool;
+import ar.edu.itba.pdc.upstream.enumerations.Balancing;
 import ar.edu.itba.pdc.utils.ConfigurationCommands;
+import ar.edu.itba.pdc.utils.ConfigurationListener;
+
+public class Multiplexing implements ConfigurationListener {
+
+	/* Defaults of the upstreamCheckInterval, upstreamCheckTimeout and upstreamMaxFails properties */
+	private static final long DEFAULT_CHECK_INTERVAL = 5000;
+	private static final long DEFAULT_CHECK_TIMEOUT = 2000;
+	private static final int DEFAULT_MAX_FAILS = 2;
+
+	private volatile String defaultServer;
+	private volatile Map<String, String> usersOwnServers;
+	/* Pools set through the upstreams property */
+	private volatile Map<String, UpstreamPool> pools;
+	/* Single endpoint pools of the domains that are not in it */
+	private ConcurrentMap<String, UpstreamPool> implicitPools = new ConcurrentHashMap<String, UpstreamPool>();
+	private volatile Balancing balancing;
+	private int maxFails;
+	private HealthChecker healthChecker;
+	private XMPPLogger logger = XMPPLogger.getInstance();
+
+	private static Multiplexing instance = new Multiplexing();
 
-public class Multiplexing{
-	
-	private String defaultServer;
-	private Map<String, String> usersOwnServers = null;
-	
-	private static Multiplexing instance = null;
-	
 	public static Multiplexing getInstance() {
-		if (instance == null)
-			instance = new Multiplexing();
 		return instance;
 	}
-	
+
 	/* From configuration file */
 	private Multiplexing() {
-		usersOwnServers = new HashMap<String, String>();
-		String multiplexed = ConfigurationCommands.getInstance().getProperty("multiplex");
-		defaultServer = ConfigurationCommands.getInstance().getProperty("defaultServer");
-		updateMultiplexedUsers(multiplexed);
+		ConfigurationCommands config = ConfigurationCommands.getInstance();
+		defaultServer = config.getProperty("defaultServer");
+		usersOwnServers = parseMultiplexedUsers(config.getProperty("multiplex"));
+		maxFails = (int) getProperty("upstreamMaxFails", DEFAULT_MAX_FAILS);
+		healthChecker = new HealthChecker(getProperty("upstreamCheckInterval",
+				DEFAULT_CHECK_INTERVAL), getProperty("upstreamCheckTimeout",
+				DEFAULT_CHECK_TIMEOUT));
+		balancing = parseBalancing(config.getProperty("upstreamBalancing"));
+		pools = parsePools(config.getProperty("upstreams"));
+		prefetchServers();
+		config.addListener(this);
 	}
-	
+
 	/* From admin changes */
-	public void updateMultiplexedUsers (String rawUsers) {
+	public void propertyChanged(String property, String value) {
+		Collection<Endpoint> before = getKnownEndpoints();
+		if (property.equals("multiplex"))
+			usersOwnServers = parseMultiplexedUsers(value);
+		else if (property.equals("defaultServer"))
+			defaultServer = value;
+		else if (property.equals("upstreams"))
+			pools = parsePools(value);
+		else if (property.equals("upstreamBalancing"))
+			balancing = parseBalancing(value);
+		else
+			return;
+		retireEndpoints(before);
+		prefetchServers();
+	}
+
+	/**
+	 * Forgets the single endpoint pools of domains clients are no longer
+	 * sent to, or that got a pool of their own, and retires every endpoint
+	 * that is not in any pool anymore, unregistering its metrics. Endpoints
+	 * carried over into the new pools keep theirs.
+	 *
+	 * @param before
+	 *            Every endpoint before the change.
+	 */
+
+	private void retireEndpoints(Collection<Endpoint> before) {
+		Collection<String> servers = getServers();
+		for (String domain : implicitPools.keySet())
+			if (!servers.contains(domain) || pools.containsKey(domain))
+				implicitPools.remove(domain);
+		Set<Endpoint> live = Collections.newSetFromMap(
+				new IdentityHashMap<Endpoint, Boolean>());
+		Set<String> livePrefixes = new HashSet<String>();
+		for (Endpoint endpoint : getKnownEndpoints()) {
+			live.add(endpoint);
+			livePrefixes.add(endpoint.getMetricsPrefix());
+		}
+		for (Endpoint endpoint : before) {
+			if (live.contains(endpoint))
+				continue;
+			endpoint.retire();
+			if (!livePrefixes.contains(endpoint.getMetricsPrefix()))
+				endpoint.unregister();
+		}
+	}
+
+	/**
+	 * Returns the endpoints of every pool, whether clients are sent to them
+	 * or not.
+	 */
+
+	private Collection<Endpoint> getKnownEndpoints() {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		for (UpstreamPool pool : pools.values())
+			endpoints.addAll(pool.getEndpoints());
+		for (UpstreamPool pool : implicitPools.values())
+			endpoints.addAll(pool.getEndpoints());
+		return endpoints;
+	}
+
+	/**
+	 * Resolves every server clients can be sent to ahead of time, so logins
+	 * find their addresses already cached.
+	 */
+
+	private void prefetchServers() {
+		for (Endpoint endpoint : getEndpoints())
+			HostResolver.getInstance().prefetch(endpoint.getHost());
+	}
+
+	private static Map<String, String> parseMultiplexedUsers(String rawUsers) {
+		Map<String, String> servers = new HashMap<String, String>();
 		if (rawUsers != null && !rawUsers.equals("")) {
 			for (String s : rawUsers.split(";")) {
 				String[] jid = s.split("@");
+				if (jid.length < 2)
+					continue;
 				String[] domain = jid[1].split("/");
-				usersOwnServers.put(jid[0], domain[0]);
+				servers.put(jid[0], domain[0]);
+			}
+		}
+		return Collections.unmodifiableMap(servers);
+	}
+
+	/**
+	 * Parses the upstreams property, a list of
+	 * <i>domain=host[:port],host[:port]...</i> separated by semicolons, and
+	 * hands the endpoints of pools with more than one to the health checker.
+	 * Endpoints the domain already had, in the upstreams property or as its
+	 * single endpoint, are carried over.
+	 * There is nowhere else to send the clients of a single server, so it is
+	 * not probed.
+	 */
+
+	private Map<String, UpstreamPool> parsePools(String rawPools) {
+		Map<String, UpstreamPool> previous = pools;
+		Map<String, UpstreamPool> parsed = new HashMap<String, UpstreamPool>();
+		if (rawPools != null && !rawPools.equals("")) {
+			for (String s : rawPools.split(";")) {
+				int equals = s.indexOf('=');
+				String domain = (equals == -1) ? "" : s.substring(0, equals)
+						.trim();
+				UpstreamPool pool = domain.isEmpty() ? null : UpstreamPool
+						.parse(domain, s.substring(equals + 1), previousPool(
+								previous, domain), maxFails);
+				if (pool == null)
+					logger.warn("Ignoring invalid upstream pool " + s.trim());
+				else
+					parsed.put(domain, pool);
 			}
 		}
+		List<Endpoint> probed = new ArrayList<Endpoint>();
+		for (UpstreamPool pool : parsed.values())
+			if (pool.getEndpoints().size() > 1)
+				probed.addAll(pool.getEndpoints());
+		healthChecker.setEndpoints(probed);
+		return Collections.unmodifiableMap(parsed);
 	}
-	
+
+	private UpstreamPool previousPool(Map<String, UpstreamPool> previous,
+			String domain) {
+		UpstreamPool pool = (previous == null) ? null : previous.get(domain);
+		return (pool != null) ? pool : implicitPools.get(domain);
+	}
+
+	private static Balancing parseBalancing(String value) {
+		try {
+			return Balancing.valueOf(value.trim());
+		} catch (IllegalArgumentException e) {
+			return Balancing.leastConnections;
+		}
+	}
+
 	public String getUserServer(String user) {
-		if (usersOwnServers.containsKey(user))
-			return usersOwnServers.get(user);
+		String server = usersOwnServers.get(user);
+		return (server != null) ? server : defaultServer;
+	}
+
+	public String getDefaultServer() {
 		return defaultServer;
 	}
-	
-	
+
+	/**
+	 * Returns the pool of endpoints of the given domain. Domains that are not
+	 * in the upstreams property are served by the host of their own name, on
+	 * the standard client port.
+	 *
+	 * @param domain
+	 */
+
+	public UpstreamPool getPool(String domain) {
+		UpstreamPool pool = pools.get(domain);
+		if (pool != null)
+			return pool;
+		pool = implicitPools.get(domain);
+		if (pool == null) {
+			List<Endpoint> endpoint = new ArrayList<Endpoint>();
+			endpoint.add(new Endpoint(domain, domain, Endpoint.DEFAULT_PORT,
+					maxFails));
+			UpstreamPool created = new UpstreamPool(domain, endpoint);
+			pool = implicitPools.putIfAbsent(domain, created);
+			if (pool == null)
+				pool = created;
+		}
+		return pool;
+	}
+
+	/**
+	 * Picks the endpoint of the given domain a new session goes to (see
+	 * UpstreamPool), following the <i>upstreamBalancing</i> property.
+	 *
+	 * @param domain
+	 * @param user
+	 *            Username, or null if it is not known yet.
+	 * @return The endpoint, or null if there is no domain.
+	 */
+
+	public Endpoint selectEndpoint(String domain, String user) {
+		if (domain == null || domain.isEmpty())
+			return null;
+		return getPool(domain).select(user, balancing);
+	}
+
+	/**
+	 * Returns every server clients can be sent to.
+	 */
+
+	public Collection<String> getServers() {
+		Set<String> servers = new HashSet<String>(usersOwnServers.values());
+		if (defaultServer != null && !defaultServer.isEmpty())
+			servers.add(defaultServer);
+		return servers;
+	}
+
+	/**
+	 * Returns the endpoints of every server clients can be sent to.
+	 */
+
+	public Collection<Endpoint> getEndpoints() {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		for (String server : getServers())
+			endpoints.addAll(getPool(server).getEndpoints());
+		return endpoints;
+	}
+
+	private static long getProperty(String property, long defaultValue) {
+		String value = ConfigurationCommands.getInstance().getProperty(
+				property);
+		try {
+			long parsed = Long.parseLong(value.trim());
+			return (parsed > 0) ? parsed : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
 
 }
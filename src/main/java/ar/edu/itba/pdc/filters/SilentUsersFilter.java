@@ -1,49 +1,67 @@
 package ar.edu.itba.pdc.filters;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import ar.edu.itba.pdc.jabber.Message;
 import ar.edu.itba.pdc.stanzas.Stanza;
 import ar.edu.itba.pdc.utils.ConfigurationCommands;
+import ar.edu.itba.pdc.utils.ConfigurationListener;
 
-public class SilentUsersFilter implements Filter {
+public class SilentUsersFilter implements Filter, ConfigurationListener {
+
+	private volatile SilenceIndex index;
+	private static SilentUsersFilter instance = new SilentUsersFilter();
 
-	private Set<String> mapOfSilence = null;
-	private static SilentUsersFilter instance = null;
-	
 	public static SilentUsersFilter getInstance() {
-		if (instance == null)
-			instance = new SilentUsersFilter();
 		return instance;
 	}
-	
+
 	private SilentUsersFilter() {
-		mapOfSilence = new HashSet<String>();
-		String silent = ConfigurationCommands.getInstance().getProperty(
-				"silenceuser");
-		for (String s : silent.split(";")) {
-			mapOfSilence.add(s);
-		}
+		ConfigurationCommands config = ConfigurationCommands.getInstance();
+		index = compile(config.getProperty("silenceuser"));
+		config.addListener(this);
 	}
 
-	public void addSilencedUser(String jid) {
-		if (mapOfSilence != null) {
-			mapOfSilence.add(jid);
-		}
+	/**
+	 * Recompiles the silence list whenever the silenceuser property changes.
+	 * The filter starts using the new list as soon as it is built.
+	 */
+
+	public void propertyChanged(String property, String value) {
+		if (property.equals("silenceuser"))
+			index = compile(value);
 	}
 
-	public boolean isSilent(String jid) {
-		for (String s : mapOfSilence) {
-			if (jid.contains(s))
-				return true;
+	/**
+	 * Builds the index from a list of users (<i>user@domain</i>) and whole
+	 * domains (<i>domain</i>, which includes its subdomains) separated by
+	 * semicolons.
+	 */
+
+	private static SilenceIndex compile(String silent) {
+		Set<String> silenced = new LinkedHashSet<String>();
+		for (String s : silent.split(";")) {
+			if (!s.trim().isEmpty())
+				silenced.add(s.trim());
 		}
-		return false;
+		return new SilenceIndex(silenced);
 	}
 
-	public void removeSilentUser(String jid) {
-		if (mapOfSilence != null)
-			mapOfSilence.remove(jid);
+	/**
+	 * Returns true if the given JID, with or without resource, belongs to a
+	 * silenced user or domain.
+	 *
+	 * @param jid
+	 */
+
+	public boolean isSilent(String jid) {
+		return index.matches(jid);
 	}
 
 	public void apply(Stanza stanza) {
@@ -66,4 +84,87 @@ public class SilentUsersFilter implements Filter {
 		}
 	}
 
+	/**
+	 * Immutable snapshot of the silence list, compiled for lookups that do not
+	 * depend on its size: a hash set of bare JIDs and a trie of domain labels,
+	 * walked from the top level domain down.
+	 */
+
+	private static class SilenceIndex {
+
+		private Set<String> bareJids;
+		private DomainNode domains;
+
+		SilenceIndex(Set<String> entries) {
+			Set<String> jids = new HashSet<String>();
+			domains = new DomainNode();
+			for (String entry : entries) {
+				String bare = bareJid(entry);
+				if (bare.indexOf('@') != -1)
+					jids.add(bare);
+				else if (!bare.isEmpty())
+					domains.add(bare);
+			}
+			bareJids = Collections.unmodifiableSet(jids);
+		}
+
+		boolean matches(String jid) {
+			String bare = bareJid(jid);
+			if (bareJids.contains(bare))
+				return true;
+			return domains.matches(bare, bare.indexOf('@') + 1);
+		}
+
+		private static String bareJid(String jid) {
+			int resource = jid.indexOf('/');
+			if (resource != -1)
+				jid = jid.substring(0, resource);
+			return jid.toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	private static class DomainNode {
+
+		private Map<String, DomainNode> children = new HashMap<String, DomainNode>();
+		private boolean silenced = false;
+
+		void add(String domain) {
+			DomainNode node = this;
+			int end = domain.length();
+			while (end > 0) {
+				int start = domain.lastIndexOf('.', end - 1) + 1;
+				String label = domain.substring(start, end);
+				DomainNode child = node.children.get(label);
+				if (child == null) {
+					child = new DomainNode();
+					node.children.put(label, child);
+				}
+				node = child;
+				end = start - 1;
+			}
+			node.silenced = true;
+		}
+
+		/**
+		 * Returns true if the domain starting at the given offset of the JID,
+		 * or any of its parent domains, is silenced.
+		 */
+
+		boolean matches(String jid, int domainStart) {
+			DomainNode node = this;
+			int end = jid.length();
+			while (end > domainStart) {
+				int start = Math.max(jid.lastIndexOf('.', end - 1) + 1,
+						domainStart);
+				node = node.children.get(jid.substring(start, end));
+				if (node == null)
+					return false;
+				if (node.silenced)
+					return true;
+				end = start - 1;
+			}
+			return false;
+		}
+	}
+
 }
@@ -1,72 +1,102 @@
 package ar.edu.itba.pdc.filters;
 
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import ar.edu.itba.pdc.jabber.JabberElement;
 import ar.edu.itba.pdc.jabber.Message;
 import ar.edu.itba.pdc.jabber.Presence;
 import ar.edu.itba.pdc.stanzas.Stanza;
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
+import ar.edu.itba.pdc.utils.ConfigurationListener;
 
-public class StatisticsFilter implements Filter {
+public class StatisticsFilter implements Filter, ConfigurationListener {
 
 	private static final int DEFAULT_INTERVAL = 120000; // 2 minutos en
 														// milisegundos
 	private static final int TRANSFER_UNIT = 50;
 	private static final int ACCESS_UNIT = 1;
-	private static int interval = DEFAULT_INTERVAL;
-	private static int byteUnit = TRANSFER_UNIT;
-	private static StatisticsFilter instance = null;
+	/* Amount of intervals kept by every user, older ones are overwritten */
+	private static final int KEPT_INTERVALS = 64;
+
+	private static volatile int interval = DEFAULT_INTERVAL;
+	private static volatile int byteUnit = TRANSFER_UNIT;
+	private static StatisticsFilter instance = new StatisticsFilter();
 	@SuppressWarnings("unused")
-	private boolean statisticsEnabled = false;
+	private volatile boolean statisticsEnabled = false;
 	private long initialStatisticsTime = -1;
 
-	private Map<String, PersonalStatistic> usersStatistics = null;
+	private ConcurrentMap<String, PersonalStatistic> usersStatistics = null;
 
 	public static StatisticsFilter getInstance() {
-		if (instance == null)
-			instance = new StatisticsFilter();
 		return instance;
 	}
 
 	private StatisticsFilter() {
-		if (usersStatistics == null) {
-			usersStatistics = new HashMap<String, PersonalStatistic>();
-			initialStatisticsTime = System.currentTimeMillis();
-			// setInterval(AdminParser.getInterval()) // desde el archivo conf
+		usersStatistics = new ConcurrentHashMap<String, PersonalStatistic>();
+		initialStatisticsTime = System.currentTimeMillis();
+		ConfigurationCommands config = ConfigurationCommands.getInstance();
+		for (String property : new String[] { "interval", "byteUnit",
+				"statistics" }) {
+			if (config.hasProperty(property))
+				propertyChanged(property, config.getProperty(property));
+		}
+		config.addListener(this);
+	}
+
+	public void propertyChanged(String property, String value) {
+		try {
+			if (property.equals("interval"))
+				setInterval(Integer.parseInt(value));
+			else if (property.equals("byteUnit"))
+				setByteUnit(Integer.parseInt(value));
+		} catch (NumberFormatException e) {
+			return;
+		}
+		if (property.equals("statistics")) {
+			if (value.equalsIgnoreCase("enabled"))
+				enableStatistics();
+			else
+				disableStatistics();
 		}
 	}
 
+	/**
+	 * Builds the statistics report. Only the last KEPT_INTERVALS intervals
+	 * are shown, since older ones are no longer kept.
+	 * 
+	 * Counters keep being updated while the report is built, so it is a
+	 * close approximation rather than a consistent snapshot.
+	 */
+
 	public String execute() {
-		int currInterval = getCurrentInterval() + 1;
-		int globalTotalAccesses = 0, globalTotalByteTransfers = 0;
-		int[] globalAccessByInterval = new int[currInterval], byteTransferByInterval = new int[currInterval];
+		int currInterval = getCurrentInterval();
+		int firstInterval = Math.max(0, currInterval - KEPT_INTERVALS + 1);
+		int shownIntervals = currInterval - firstInterval + 1;
+		long globalTotalAccesses = 0, globalTotalByteTransfers = 0;
+		long[] globalAccessByInterval = new long[shownIntervals], byteTransferByInterval = new long[shownIntervals];
 		String ans = "";
 		Date date = new Date(System.currentTimeMillis());
 		ans += "Estadistica del proxy - " + date + "\n\n";
 
 		for (PersonalStatistic ps : usersStatistics.values()) {
-			int userTotalAccesses = 0, userTotalBytesTransfered = 0;
-			int[] userAccessByInterval = new int[currInterval], userByteTransferByInterval = new int[currInterval];
-
-			for (Entry<Integer, Integer> access : ps.accessBetweenIntervals
-					.entrySet()) {
-				globalAccessByInterval[access.getKey()] += access.getValue();
-				userAccessByInterval[access.getKey()] += access.getValue();
-				userTotalAccesses += access.getValue();
-			}
-			globalTotalAccesses += userTotalAccesses;
+			long userTotalAccesses = 0, userTotalBytesTransfered = 0;
+			long[] userAccessByInterval = new long[shownIntervals], userByteTransferByInterval = new long[shownIntervals];
 
-			for (Entry<Integer, Integer> bytesTransfered : ps.bytesBetweenIntervals
-					.entrySet()) {
-				byteTransferByInterval[bytesTransfered.getKey()] += bytesTransfered
-						.getValue();
-				userByteTransferByInterval[bytesTransfered.getKey()] += bytesTransfered
-						.getValue();
-				userTotalBytesTransfered += bytesTransfered.getValue();
+			for (int i = 0; i < shownIntervals; i++) {
+				long accesses = ps.accesses.get(firstInterval + i);
+				globalAccessByInterval[i] += accesses;
+				userAccessByInterval[i] += accesses;
+				userTotalAccesses += accesses;
+
+				long bytesTransfered = ps.bytes.get(firstInterval + i);
+				byteTransferByInterval[i] += bytesTransfered;
+				userByteTransferByInterval[i] += bytesTransfered;
+				userTotalBytesTransfered += bytesTransfered;
 			}
+			globalTotalAccesses += userTotalAccesses;
 			globalTotalByteTransfers += userTotalBytesTransfered;
 			if (userTotalAccesses != 0 || userTotalBytesTransfered != 0) {
 				ans += "Estadistica del Usuario: " + ps.jid + "\n\n";
@@ -77,14 +107,14 @@ public class StatisticsFilter implements Filter {
 				ans += "Histograma de ACCESOS del usuario: " + "\nINTERVALO ("
 						+ interval / 60000 + " mins)\n";
 
-				ans += printHistogram(userAccessByInterval, currInterval,
+				ans += printHistogram(userAccessByInterval, firstInterval,
 						ACCESS_UNIT);
 				ans += "Histograma de TRANSFERENCIA del usuario: " + ps.jid
 						+ "\nINTERVALO (" + interval / 60000 + " mins)\t"
 						+ "UNIDAD (" + byteUnit + " bytes)\n";
 				;
-				ans += printHistogram(userByteTransferByInterval, currInterval,
-						byteUnit);
+				ans += printHistogram(userByteTransferByInterval,
+						firstInterval, byteUnit);
 			}
 		}
 		ans += "Estadistica General \n";
@@ -92,9 +122,10 @@ public class StatisticsFilter implements Filter {
 		ans += "Bytes TRANSFERENCIA del sistema: " + globalTotalByteTransfers
 				+ "\n";
 		ans += "Histograma de accesos totales: \n";
-		ans += printHistogram(globalAccessByInterval, currInterval, ACCESS_UNIT);
+		ans += printHistogram(globalAccessByInterval, firstInterval,
+				ACCESS_UNIT);
 		ans += "Histograma de transferencias totales: \n";
-		ans += printHistogram(byteTransferByInterval, currInterval,
+		ans += printHistogram(byteTransferByInterval, firstInterval,
 				byteUnit);
 		return ans + "----------------------------------END OF MESSAGE------------------------------------------\n";
 	}
@@ -104,7 +135,7 @@ public class StatisticsFilter implements Filter {
 		int currInterval = getCurrentInterval();
 		
 		for (PersonalStatistic ps : usersStatistics.values()) {
-			if (ps.bytesBetweenIntervals.containsKey(currInterval)) {
+			if (ps.bytes.touched(currInterval)) {
 				ans += ps.jid + "\n";
 			}
 		}
@@ -112,11 +143,13 @@ public class StatisticsFilter implements Filter {
 	}
 
 	public void setInterval(int minutes) {
-		interval = minutes * 60 * 1000;
+		if (minutes > 0)
+			interval = (int) Math.min(Integer.MAX_VALUE, minutes * 60 * 1000L);
 	}	
 	
 	public void setByteUnit(int byteUnit) {
-		this.byteUnit = byteUnit;  
+		if (byteUnit > 0)
+			StatisticsFilter.byteUnit = byteUnit;
 	}
 
 	public void enableStatistics() {
@@ -131,11 +164,11 @@ public class StatisticsFilter implements Filter {
 		return (int) ((System.currentTimeMillis() - initialStatisticsTime) / interval);
 	}
 
-	private String printHistogram(int[] array, int interval, int unit) {
+	private String printHistogram(long[] array, int firstInterval, int unit) {
 		String out = "";
 		for (int i = 0; i < array.length; i++) {
-			out += i + ": ";
-			int aux = 0;
+			out += (firstInterval + i) + ": ";
+			long aux = 0;
 			while (aux + unit <= array[i]) {
 				out += "*";
 				aux += unit;
@@ -149,8 +182,8 @@ public class StatisticsFilter implements Filter {
 
 	private class PersonalStatistic {
 
-		Map<Integer, Integer> accessBetweenIntervals = new HashMap<Integer, Integer>();
-		Map<Integer, Integer> bytesBetweenIntervals = new HashMap<Integer, Integer>();
+		IntervalCounter accesses = new IntervalCounter();
+		IntervalCounter bytes = new IntervalCounter();
 		String jid = null;
 
 		PersonalStatistic(String jid) {
@@ -158,16 +191,9 @@ public class StatisticsFilter implements Filter {
 		}
 
 		private void applyFilter(Message m) {
-			int position = StatisticsFilter.this.getCurrentInterval();
-			if (m.getMessage() != null) {
-				if (!bytesBetweenIntervals.containsKey(position))
-					bytesBetweenIntervals
-							.put(position, m.getMessage().length());
-				else
-					bytesBetweenIntervals.put(position,
-							bytesBetweenIntervals.get(position)
-									+ m.getMessage().length());
-			}
+			if (m.getMessage() != null)
+				bytes.add(StatisticsFilter.this.getCurrentInterval(), m
+						.getMessage().length());
 		}
 
 		/*
@@ -176,33 +202,91 @@ public class StatisticsFilter implements Filter {
 		 */
 		/* Pensar que pasa cuando retransmite este mensaje (bastante posible) */
 		private void applyFilter(Presence p) {
-			if (p.getTo() == null) {
-				int position = StatisticsFilter.this.getCurrentInterval();
-				if (!bytesBetweenIntervals.containsKey(position))
-					accessBetweenIntervals.put(position, 1);
-				else
-					accessBetweenIntervals.put(position,
-							accessBetweenIntervals.get(position) + 1);
-			}
+			if (p.getTo() == null)
+				accesses.add(StatisticsFilter.this.getCurrentInterval(), 1);
 		}
 	}
 
 	/* fin clase interna */
 
+	/**
+	 * Ring of counters, one slot per interval, updated without locking.
+	 * 
+	 * Every slot packs the interval it belongs to (its epoch, in the upper
+	 * EPOCH_BITS bits) along with its count, so a single compare and set both
+	 * claims a slot left by an older interval and adds to it.
+	 */
+
+	private static class IntervalCounter {
+
+		private static final int COUNT_BITS = 40;
+		private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+		private static final long EPOCH_MASK = (1L << (64 - COUNT_BITS)) - 1;
+
+		private AtomicLongArray slots = new AtomicLongArray(KEPT_INTERVALS);
+
+		/**
+		 * Adds the given amount to the counter of the given interval.
+		 */
+
+		void add(int interval, long amount) {
+			int index = interval % KEPT_INTERVALS;
+			long epoch = epochOf(interval);
+			long current, updated;
+			do {
+				current = slots.get(index);
+				if ((current >>> COUNT_BITS) == epoch)
+					updated = current + amount;
+				else
+					updated = (epoch << COUNT_BITS) | (amount & COUNT_MASK);
+			} while (!slots.compareAndSet(index, current, updated));
+		}
+
+		/**
+		 * Returns the counter of the given interval, or 0 if it was already
+		 * overwritten or never used.
+		 */
+
+		long get(int interval) {
+			long current = slots.get(interval % KEPT_INTERVALS);
+			if ((current >>> COUNT_BITS) != epochOf(interval))
+				return 0;
+			return current & COUNT_MASK;
+		}
+
+		/**
+		 * Returns true if anything was added in the given interval.
+		 */
+
+		boolean touched(int interval) {
+			return (slots.get(interval % KEPT_INTERVALS) >>> COUNT_BITS) == epochOf(interval);
+		}
+
+		/* Epoch 0 is left for slots never used */
+		private static long epochOf(int interval) {
+			return ((interval + 1) & EPOCH_MASK);
+		}
+	}
+
 	public void apply(Stanza stanza) {
 		String from;
 		JabberElement je;
 		if (stanza != null && (je = stanza.getElement()) != null
 				&& (from = je.getFrom()) != null) {
-			String[] aux = from.split("/");
-			from = aux[0];
-			if (!usersStatistics.containsKey(from)) {
-				usersStatistics.put(from, new PersonalStatistic(from));
+			int resource = from.indexOf('/');
+			if (resource != -1)
+				from = from.substring(0, resource);
+			PersonalStatistic ps = usersStatistics.get(from);
+			if (ps == null) {
+				PersonalStatistic created = new PersonalStatistic(from);
+				ps = usersStatistics.putIfAbsent(from, created);
+				if (ps == null)
+					ps = created;
 			}
 			if (stanza.isMessage()) {
-				usersStatistics.get(from).applyFilter((Message) je);
+				ps.applyFilter((Message) je);
 			} else if (stanza.isPresence()) {
-				usersStatistics.get(from).applyFilter((Presence) je);
+				ps.applyFilter((Presence) je);
 			}
 		}
 	}
@@ -1,49 +1,149 @@
 package ar.edu.itba.pdc.filters;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import ar.edu.itba.pdc.jabber.Message;
 import ar.edu.itba.pdc.stanzas.Stanza;
 import ar.edu.itba.pdc.utils.ConfigurationCommands;
+import ar.edu.itba.pdc.utils.ConfigurationListener;
+
+public class TransformationFilter implements Filter, ConfigurationListener {
+
+	/* Rules can only replace characters below this one */
+	public static final int TABLE_SIZE = 256;
+	private static final String DEFAULT_RULES = "a:4,e:3,i:1,o:0,c:<";
+
+	private volatile boolean enabled;
+	private volatile Rules rules;
+	private static TransformationFilter instance = new TransformationFilter();
 
-public class TransformationFilter implements Filter{
-	
-	private Map<Character,String> changes;
-	private static TransformationFilter instance = null;
-	
 	public static TransformationFilter getInstance() {
-		if (instance == null)
-			instance = new TransformationFilter();
 		return instance;
 	}
-	
+
 	private TransformationFilter() {
-		changes = new HashMap<Character,String>();
-		changes.put('a', "4");
-		changes.put('e', "3");
-		changes.put('i', "1");
-		changes.put('o', "0");
-		changes.put('c', "&lt;");
-	}
-	
+		ConfigurationCommands config = ConfigurationCommands.getInstance();
+		enabled = config.getProperty("transformation").equalsIgnoreCase("enabled");
+		String spec = config.getProperty("transformationRules");
+		rules = parseRules(spec.isEmpty() ? DEFAULT_RULES : spec);
+		if (rules == null)
+			rules = parseRules(DEFAULT_RULES);
+		config.addListener(this);
+	}
+
+	public void propertyChanged(String property, String value) {
+		if (property.equals("transformation"))
+			setEnabled(value.equalsIgnoreCase("enabled"));
+		else if (property.equals("transformationRules"))
+			setRules(value);
+	}
+
+	/**
+	 * Turns the filter on or off. Called whenever the transformation property
+	 * changes.
+	 *
+	 * @param enabled
+	 */
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Replaces the substitution rules.
+	 *
+	 * @param spec
+	 *            Comma separated list of <i>character:replacement</i> pairs,
+	 *            like <i>a:4,e:3</i>.
+	 * @return false if the rules are not valid, in which case the current
+	 *         ones are kept.
+	 */
+
+	public boolean setRules(String spec) {
+		Rules parsed = parseRules(spec);
+		if (parsed == null)
+			return false;
+		rules = parsed;
+		return true;
+	}
+
 	public void apply(Stanza stanza) {
-		String s = ConfigurationCommands.getInstance().getProperty("transformation");
-		if (s != null && s.equals("enabled")) {
-			if (stanza.isMessage()) {
-				String msg = ((Message)stanza.getElement()).getMessage();
-				if (msg != null) {
-					StringBuffer sb = new StringBuffer(msg.length());
-					for (int i = 0; i < msg.length(); i++) {
-						if (changes.containsKey(msg.charAt(i))) 
-							sb.append(changes.get(msg.charAt(i)));
-						else
-							sb.append(msg.charAt(i));
-					}
-					((Message)stanza.getElement()).setMessage(sb.toString());
-				}
+		if (enabled && stanza.isMessage()) {
+			Message msg = (Message) stanza.getElement();
+			if (msg.getMessage() != null) {
+				String transformed = transform(msg.getMessage(), rules);
+				if (transformed != msg.getMessage())
+					msg.setMessage(transformed);
 			}
 		}
 	}
 
+	/**
+	 * Applies the rules in a single pass. Runs of characters with no rule are
+	 * skipped and copied in bulk; if there is no rule for any character, the
+	 * same string is returned and nothing is allocated.
+	 */
+
+	private static String transform(String msg, Rules rules) {
+		char[][] table = rules.table;
+		int length = msg.length();
+		int i = 0;
+		while (i < length && !hasRule(table, msg.charAt(i)))
+			i++;
+		if (i == length)
+			return msg;
+
+		/* Upper bound for the transformed message */
+		char[] out = new char[i + (length - i) * rules.longestReplacement];
+		msg.getChars(0, i, out, 0);
+		int written = i;
+		while (i < length) {
+			char[] replacement = table[msg.charAt(i)];
+			System.arraycopy(replacement, 0, out, written, replacement.length);
+			written += replacement.length;
+			int runStart = ++i;
+			while (i < length && !hasRule(table, msg.charAt(i)))
+				i++;
+			msg.getChars(runStart, i, out, written);
+			written += i - runStart;
+		}
+		return new String(out, 0, written);
+	}
+
+	private static boolean hasRule(char[][] table, char c) {
+		return c < TABLE_SIZE && table[c] != null;
+	}
+
+	/**
+	 * Compiles a rule list into a table indexed by character. Returns null if
+	 * the list is not valid.
+	 */
+
+	private static Rules parseRules(String spec) {
+		char[][] table = new char[TABLE_SIZE][];
+		int longest = 1;
+		for (String rule : spec.split(",")) {
+			int separator = rule.indexOf(':');
+			if (separator != 1 || rule.charAt(0) >= TABLE_SIZE)
+				return null;
+			char[] replacement = rule.substring(2).toCharArray();
+			table[rule.charAt(0)] = replacement;
+			longest = Math.max(longest, replacement.length);
+		}
+		return new Rules(table, longest);
+	}
+
+	/**
+	 * Immutable set of substitution rules, swapped as a whole.
+	 */
+
+	private static class Rules {
+
+		private final char[][] table;
+		private final int longestReplacement;
+
+		Rules(char[][] table, int longestReplacement) {
+			this.table = table;
+			this.longestReplacement = longestReplacement;
+		}
+	}
+
 }
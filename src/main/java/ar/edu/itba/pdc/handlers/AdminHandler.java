@@ -1,119 +1,141 @@
 package ar.edu.itba.pdc.handlers;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Map;
 
-import ar.edu.itba.pdc.exceptions.BadSyntaxException;
 import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.nio.InterestOpsQueue;
 import ar.edu.itba.pdc.parser.AdminParser;
 import ar.edu.itba.pdc.proxy.ChannelBuffers;
 import ar.edu.itba.pdc.proxy.enumerations.BufferType;
 
 public class AdminHandler extends Handler {
 
-	private Map<SocketChannel, ChannelBuffers> config;
+	private Map<SocketChannel, AdminSession> sessions;
 	private AdminParser parser;
-	private boolean logged = false;
 	private XMPPLogger logger = XMPPLogger.getInstance();
 	
-	public AdminHandler(Selector selector) {
-		super(selector);
-		config = new HashMap<SocketChannel, ChannelBuffers>();
+	public AdminHandler(Selector selector, InterestOpsQueue interestOps) {
+		super(selector, interestOps);
+		sessions = new HashMap<SocketChannel, AdminSession>();
 		parser = new AdminParser();
 	}
 
 	/**
 	 * Handles incoming connections to admin port.
 	 * 
-	 * Creates a new ChannelBuffers object which will contain the read and write
-	 * buffers related to the channel.
+	 * Creates a new AdminSession, which keeps whether the administrator
+	 * logged in along with the read and write buffers related to the
+	 * channel.
 	 * 
 	 */
 
 	public void accept(SocketChannel channel) throws IOException {
 		logger.info("New admin connected");
-		config.put(channel, new ChannelBuffers());
+		sessions.put(channel, new AdminSession());
 	}
 
 	/**
 	 * Handles incoming reads from administrators.
 	 * 
-	 * Parses the message and validates the syntax.
+	 * Answers every command line completed by the read (see AdminSession).
+	 * The responses are queued and written once the channel is writable, so a
+	 * long one never blocks the reactor nor is cut short.
 	 * 
 	 */
 
-	public SocketChannel read(SelectionKey key) throws IOException {
+	public void read(SelectionKey key) throws IOException {
 		SocketChannel s = (SocketChannel) key.channel();
-		ChannelBuffers channelBuffers = config.get(s);
-		int bytesRead = s.read(channelBuffers.getBuffer(BufferType.read));
-
+		AdminSession session = sessions.get(s);
+		if (session == null) {
+			key.cancel();
+			return;
+		}
 		try {
-			String response;
-			if ((response = parser.parseCommand(
-					channelBuffers.getBuffer(BufferType.read), bytesRead)) != null) {
-				if (logged || response.equals("PASSWORD OK\n")) {
-					logged = true;
-					s.write(ByteBuffer.wrap(response.getBytes()));
-				} else if (response.equals("INVALID PASSWORD\n")){
-					s.write(ByteBuffer.wrap(response.getBytes()));
-				} else {
-					s.write(ByteBuffer.wrap("Not logged in!\n".getBytes()));
-				}
+			if (s.read(session.getBuffers().getBuffer(BufferType.read)) == -1) {
+				logger.info("Admin disconnected");
+				disconnect(key);
+				return;
 			}
-		} catch (BadSyntaxException e) {
-			System.out.println("Bad syntax");
-			s.write(ByteBuffer.wrap("BAD SYNTAX\n".getBytes()));
+			session.process(parser);
 		} catch (Exception e) {
-			logged = false;
 			logger.error("Lost connection with the admin");
-			s.close();
-			key.cancel();
-			return null;
+			disconnect(key);
+			return;
 		}
-		channelBuffers.getBuffer(BufferType.read).clear();
 		updateSelectionKeys(s);
-		return null;
 	}
 
 	/**
 	 * Handles write operations.
 	 * 
-	 * Gets the buffer from the ChannelBuffers object and writes directly into
-	 * it.
+	 * Writes as much of the channel's write queue (see ChannelBuffers) as the
+	 * channel accepts.
 	 * 
 	 */
 
 	public void write(SelectionKey key) throws IOException {
 		SocketChannel s = (SocketChannel) key.channel();
-		ByteBuffer wrBuffer = config.get(s).getBuffer(BufferType.write);
-		wrBuffer.flip();
-		s.write(wrBuffer);
+		AdminSession session = sessions.get(s);
+		if (session == null) {
+			key.cancel();
+			return;
+		}
+		try {
+			session.getBuffers().writeTo(s);
+		} catch (IOException e) {
+			logger.error("Lost connection with the admin");
+			disconnect(key);
+			return;
+		}
 		updateSelectionKeys(s);
-		wrBuffer.compact();
+	}
+
+	/**
+	 * Admin channels never open outgoing connections.
+	 * 
+	 */
+
+	public void connect(SelectionKey key) throws IOException {
+		key.interestOps(SelectionKey.OP_READ);
 	}
 
 	/**
 	 * Updates selector keys for a specific connection.
 	 * 
-	 * Always sets the OP_READ flag, in case any endpoint wants to write
-	 * something.
+	 * Sets the OP_READ flag unless the administrator has too many responses
+	 * waiting to be written, which happens when it sends commands faster than
+	 * it reads their answers.
 	 * 
 	 * In case there's pending information in the write buffer for a specific
 	 * channel, sets the channel OP_WRITE flag.
 	 * 
-	 * @param connection
-	 * @throws ClosedChannelException
+	 * @param s
 	 */
 
-	private void updateSelectionKeys(SocketChannel s)
-			throws ClosedChannelException {
-		ChannelBuffers buffers = config.get(s);
-		updateChannelKeys(buffers.hasInformationFor(BufferType.write), s);
+	private void updateSelectionKeys(SocketChannel s) {
+		ChannelBuffers buffers = sessions.get(s).getBuffers();
+		updateChannelKeys(!buffers.isCongested(),
+				buffers.hasInformationFor(BufferType.write), s);
+	}
+
+	public void close(SelectionKey key) {
+		disconnect(key);
+	}
+
+	private void disconnect(SelectionKey key) {
+		AdminSession session = sessions.remove(key.channel());
+		if (session != null)
+			session.release();
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			logger.error("Unable to close admin channel");
+		}
 	}
 }
@@ -0,0 +1,117 @@
+package ar.edu.itba.pdc.handlers;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import ar.edu.itba.pdc.exceptions.BadSyntaxException;
+import ar.edu.itba.pdc.parser.AdminParser;
+import ar.edu.itba.pdc.proxy.ChannelBuffers;
+import ar.edu.itba.pdc.proxy.enumerations.BufferType;
+
+class AdminSession {
+
+	/* Longest command line accepted, in bytes */
+	private static final int MAX_LINE = 64 * 1024;
+
+	private static final String PASSWORD_OK = "PASSWORD OK\n";
+	private static final String NOT_LOGGED_IN = "Not logged in!\n";
+	private static final String BAD_SYNTAX = "BAD SYNTAX\n";
+
+	private ChannelBuffers buffers = new ChannelBuffers();
+	private boolean logged = false;
+	/* True while skipping the rest of a line that was too long */
+	private boolean discarding = false;
+
+	/**
+	 * State of a single administrator's connection: whether it logged in,
+	 * the commands it sent that are not complete yet and the responses not
+	 * yet written.
+	 *
+	 * Commands end with a new line, so an administrator may send several at
+	 * once, or one across several reads; each is answered in order once its
+	 * line is complete. Responses are queued in the session's write queue and
+	 * written as the channel accepts them.
+	 */
+
+	AdminSession() {
+	}
+
+	ChannelBuffers getBuffers() {
+		return buffers;
+	}
+
+	/**
+	 * Answers every complete line in the read buffer, leaving whatever
+	 * follows the last one for the next read.
+	 *
+	 * @param parser
+	 */
+
+	void process(AdminParser parser) {
+		ByteBuffer buf = buffers.getBuffer(BufferType.read);
+		int start = 0;
+		for (int i = 0; i < buf.position(); i++) {
+			if (buf.get(i) != '\n')
+				continue;
+			if (discarding)
+				discarding = false;
+			else
+				answer(parser, line(buf, start, i));
+			start = i + 1;
+		}
+		buf.limit(buf.position());
+		buf.position(start);
+		buf.compact();
+		if (buf.hasRemaining())
+			return;
+		if (buf.capacity() < MAX_LINE) {
+			buffers.expandBuffer(BufferType.read);
+		} else {
+			buffers.clearBuffer(BufferType.read);
+			discarding = true;
+			buffers.writeToBuffer(BufferType.write, BAD_SYNTAX.getBytes());
+		}
+	}
+
+	private void answer(AdminParser parser, String line) {
+		String response;
+		try {
+			Map<String, String> commands = parser.parseCommand(line);
+			if (commands == null)
+				return;
+			if (logged) {
+				response = parser.takeActions(commands);
+			} else if (parser.isAuthentication(commands)) {
+				response = parser.takeActions(commands);
+				logged = response.equals(PASSWORD_OK);
+			} else {
+				response = NOT_LOGGED_IN;
+			}
+		} catch (BadSyntaxException e) {
+			response = BAD_SYNTAX;
+		}
+		buffers.writeToBuffer(BufferType.write, response.getBytes());
+	}
+
+	/**
+	 * Returns the line between the given positions of the buffer, without
+	 * its carriage return if it has one.
+	 */
+
+	private static String line(ByteBuffer buf, int start, int end) {
+		if (end > start && buf.get(end - 1) == '\r')
+			end--;
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buf.get(start + i);
+		return new String(bytes);
+	}
+
+	/**
+	 * Gives the session's buffers back. It must not be used afterwards.
+	 */
+
+	void release() {
+		buffers.release();
+	}
+}
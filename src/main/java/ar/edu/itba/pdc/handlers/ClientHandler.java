@@ -1,38 +1,110 @@
 package ar.edu.itba.pdc.handlers;
 
 import java.io.IOException;
-import java.net.ConnectException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.UnresolvedAddressException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import ar.edu.itba.pdc.filters.Multiplexing;
 import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.nio.HostResolver;
+import ar.edu.itba.pdc.nio.InterestOpsQueue;
+import ar.edu.itba.pdc.nio.ResolveListener;
+import ar.edu.itba.pdc.nio.TimeoutListener;
+import ar.edu.itba.pdc.nio.TimingWheel;
+import ar.edu.itba.pdc.nio.TimingWheel.Timeout;
+import ar.edu.itba.pdc.nio.enumerations.TimeoutType;
+import ar.edu.itba.pdc.proxy.ConnectionMailbox;
+import ar.edu.itba.pdc.proxy.MailboxConsumer;
 import ar.edu.itba.pdc.proxy.ProxyConnection;
+import ar.edu.itba.pdc.upstream.Endpoint;
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
 
 public class ClientHandler extends Handler {
 
+	/* Default deadlines, in milliseconds */
+	private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	private static final int DEFAULT_HANDSHAKE_TIMEOUT = 30000;
+	private static final int DEFAULT_IDLE_TIMEOUT = 600000;
+	private static final int DEFAULT_WRITE_STALL_TIMEOUT = 60000;
+
+	/* Connections closed by each kind of timeout, shared by every reactor */
+	private static AtomicLongArray expirations = new AtomicLongArray(
+			TimeoutType.values().length);
+
 	private Map<SocketChannel, ProxyConnection> connections;
+	private Map<SocketChannel, PendingConnection> pendingConnections;
+	private long connectTimeout;
+	private long handshakeTimeout;
+	private long idleTimeout;
+	private long writeStallTimeout;
 	private ExecutorService threadPool;
+	private TimingWheel wheel;
+	private WarmStreamPool warmStreams;
+	private Selector selector;
 	private XMPPLogger logger = XMPPLogger.getInstance();
 
-	public ClientHandler(Selector selector) {
-		super(selector);
-		this.connections = new HashMap<SocketChannel, ProxyConnection>();
-		this.threadPool = Executors.newFixedThreadPool(10);
+	/**
+	 * @param selector
+	 * @param interestOps
+	 *            Queue through which the selector's interest operations are
+	 *            changed.
+	 * @param threadPool
+	 *            Pool where the reads of established connections are
+	 *            processed.
+	 * @param wheel
+	 *            Timing wheel of the reactor that owns the selector, where
+	 *            the deadlines of every connection are kept.
+	 * @param reactor
+	 *            Position of the reactor that owns the selector.
+	 * @param reactors
+	 *            Amount of reactors, among which the warm streams are split.
+	 */
+
+	public ClientHandler(Selector selector, InterestOpsQueue interestOps,
+			ExecutorService threadPool, TimingWheel wheel, int reactor,
+			int reactors) {
+		super(selector, interestOps);
+		this.selector = selector;
+		this.connections = new ConcurrentHashMap<SocketChannel, ProxyConnection>();
+		this.threadPool = threadPool;
+		this.wheel = wheel;
+		this.pendingConnections = new HashMap<SocketChannel, PendingConnection>();
+		this.connectTimeout = getTimeout("connectTimeout",
+				DEFAULT_CONNECT_TIMEOUT);
+		this.handshakeTimeout = getTimeout("handshakeTimeout",
+				DEFAULT_HANDSHAKE_TIMEOUT);
+		this.idleTimeout = getTimeout("idleTimeout", DEFAULT_IDLE_TIMEOUT);
+		this.writeStallTimeout = getTimeout("writeStallTimeout",
+				DEFAULT_WRITE_STALL_TIMEOUT);
+		this.warmStreams = new WarmStreamPool(this, selector, interestOps,
+				wheel, connectTimeout, reactor, reactors);
+		/* Opened by the reactor thread once it starts */
+		interestOps.post(new Runnable() {
+			public void run() {
+				warmStreams.fill(Multiplexing.getInstance().getEndpoints());
+			}
+		});
 	}
 
-	/*
-	 * Ver ConcurrentHashMap para ver que socket fue con cada thread
+	/**
+	 * Returns how many connections were closed by the given kind of timeout
+	 * since the proxy started.
+	 * 
+	 * @param type
 	 */
 
+	public static long getExpirations(TimeoutType type) {
+		return expirations.get(type.ordinal());
+	}
+
 	/**
 	 * Handles incoming connections to client port.
 	 * 
@@ -44,9 +116,65 @@ public class ClientHandler extends Handler {
 	public void accept(SocketChannel channel) throws IOException {
 //		logger.info("Incoming new connection from client "
 //				+ channel.getRemoteAddress().toString());
-		connections.put(channel, new ProxyConnection(channel));
+		ProxyConnection connection = new ProxyConnection(channel);
+		connection.setMailbox(new ConnectionMailbox(threadPool, readProcessor));
+		connections.put(channel, connection);
+		scheduleDeadlineCheck(connection, handshakeTimeout);
 	}
 
+	/**
+	 * Arms the timeout of a connection so its deadlines are checked after the
+	 * given delay, replacing the one it had.
+	 * 
+	 * @param connection
+	 * @param delay
+	 */
+
+	private void scheduleDeadlineCheck(ProxyConnection connection, long delay) {
+		connection.setTimeout(wheel.schedule(new DeadlineChecker(connection),
+				delay));
+	}
+
+	/**
+	 * Performs and processes the reads posted to a connection's mailbox, in a
+	 * worker thread.
+	 * 
+	 * Once done, updates the selection keys of the connection, which enables
+	 * reading from the channel again.
+	 */
+
+	private MailboxConsumer readProcessor = new MailboxConsumer() {
+		public void consume(SelectionKey key) {
+			SocketChannel s = (SocketChannel) key.channel();
+			ProxyConnection connection = connections.get(s);
+			if (connection == null || !key.isValid())
+				return;
+			if (connection.isExpired()) {
+				disconnect(key);
+				return;
+			}
+			try {
+				int bytes = connection.read(s);
+				if (bytes == -1) {
+					disconnect(key);
+					return;
+				}
+				if (bytes > 0)
+					connection.process(bytes, s);
+				connection.readDone(s);
+				updateSelectionKeys(connection);
+			} catch (IOException e) {
+				logger.error("Error when reading from client");
+				disconnect(key);
+			} catch (RuntimeException e) {
+				/* Otherwise the channel would never be read again */
+				ProxyConnection.parseFailed();
+				logger.error("Unable to process what was read, closing connection");
+				disconnect(key);
+			}
+		}
+	};
+
 	/**
 	 * Handles incoming reads from clients and servers.
 	 * 
@@ -57,77 +185,243 @@ public class ClientHandler extends Handler {
 	 * to obtain its username. <blockquote>
 	 * connection.handleConnectionStanza(s); </blockquote>
 	 * 
-	 * Once obtained, opens a new socket to connect to the server, adds it to
-	 * the related ProxyConnection object and starts working as a proper proxy
-	 * filtering and modifying the messages that pass by.
+	 * Once obtained, places it on one of its server's endpoints (see
+	 * Multiplexing) and connects it through a warm stream to it if there is
+	 * one (see WarmStreamPool), or resolves the endpoint's address and starts
+	 * a non blocking connection to it (see <i>connect</i>). When it is
+	 * established, starts working as a proper proxy filtering and modifying
+	 * the messages that pass by.
+	 * 
+	 * As soon as the client sends its stream header, a stream to the default
+	 * server is opened for it, so it is likely warm by the time the client
+	 * authenticates.
 	 * 
 	 */
 
-	public SocketChannel read(final SelectionKey key) throws IOException {
-
-		final SocketChannel s = (SocketChannel) key.channel();
-		final ProxyConnection connection = connections.get(s);
+	public void read(SelectionKey key) throws IOException {
 
-		SocketChannel serverChannel = null;
+		SocketChannel s = (SocketChannel) key.channel();
+		if (warmStreams.owns(s)) {
+			warmStreams.read(key);
+			return;
+		}
+		ProxyConnection connection = connections.get(s);
+		if (connection == null) {
+			key.cancel();
+			return;
+		}
 
 		if (!connection.hasConnectedServer()) {
 			if (!connection.connected()) {
+				boolean negotiating = connection.isNegotiating();
 				connection.handleConnectionStanza(s);
-				if (connection.readyToConnectToServer()) {
-					String username = connection.getClientUsername();
-					String serverToConnect = "";
-					try {
-						serverChannel = SocketChannel.open();
-						serverToConnect = Multiplexing.getInstance()
-								.getUserServer(username);
-						serverChannel.connect(new InetSocketAddress(
-								serverToConnect, 5222));
-						connection.setServerName(serverToConnect);
-						serverChannel.configureBlocking(false);
-						register(serverChannel, SelectionKey.OP_READ);
-						connection.setServer(serverChannel);
-						connection.writeFirstStreamToServer();
-						connections.put(serverChannel, connection);
-					} catch (UnresolvedAddressException e) {
-						logger.error("Unable to find server with address "
-								+ serverToConnect);
-						serverDisconnect(serverChannel, key);
-						return null;
-					} catch (ConnectException e) {
-						logger.error("Unable to connect to server with address "
-								+ serverToConnect);
-						serverDisconnect(serverChannel, key);
-						return null;
-					}
+				if (!s.isOpen()) {
+					/* Closed by the peer during the handshake */
+					disconnect(key);
+					return;
+				}
+				if (!negotiating && connection.isNegotiating()) {
+					Multiplexing multiplexing = Multiplexing.getInstance();
+					warmStreams.speculate(multiplexing.selectEndpoint(
+							multiplexing.getDefaultServer(), null));
+				}
+				if (connection.readyToConnectToServer())
+					connectToServer(connection, key);
+				if (connection.connected()) {
+					/* Handshake done, start checking the session deadlines */
+					scheduleDeadlineCheck(connection,
+							Math.min(idleTimeout, writeStallTimeout));
 				}
 			}
 			updateSelectionKeys(connection);
 		} else {
-			/* Perform the read operation */
-			final int bytes = connection.read(s);
+			/*
+			 * Hand the read over to the connection's mailbox. Reading is
+			 * suspended for this channel until the worker turn that performs
+			 * it is done.
+			 */
+			connection.readPosted((SocketChannel) key.channel());
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			connection.getMailbox().post(key);
+		}
+	}
 
-			/* Process what was just read */
-			Runnable command = new Runnable() {
-				public void run() {
-					try {
-						if (bytes > 0) {
-							connection.process(bytes, s);
-							updateSelectionKeys(connection);
-						} else if (bytes == -1) {
-							disconnect(key);
-						}
-					} catch (IOException e) {
-						logger.error("Error when reading from client");
-						disconnect(key);
+	/**
+	 * Connects an authenticated client to one of its server's endpoints,
+	 * through a warm stream if the pool has one for it.
+	 * 
+	 * @param connection
+	 * @param key
+	 *            Client's selection key.
+	 */
+
+	private void connectToServer(ProxyConnection connection, SelectionKey key) {
+		Multiplexing multiplexing = Multiplexing.getInstance();
+		String user = connection.getClientUsername();
+		String serverToConnect = multiplexing.getUserServer(user);
+		connection.setServerName(serverToConnect);
+		Endpoint endpoint = multiplexing.selectEndpoint(serverToConnect, user);
+		if (endpoint == null) {
+			logger.error("No server to connect " + user + " to");
+			serverDisconnect(null, key);
+			return;
+		}
+		connection.setEndpoint(endpoint);
+		SocketChannel serverChannel = warmStreams.acquire(endpoint);
+		if (serverChannel != null) {
+			connections.put(serverChannel, connection);
+			connection.useServerStream(serverChannel);
+		} else {
+			resolveServer(connection, key, endpoint);
+		}
+	}
+
+	/**
+	 * Looks up the address of the endpoint the client has to be connected to
+	 * and then starts connecting to it. Addresses come from the HostResolver,
+	 * so the reactor never waits for a name lookup: if it is not cached the
+	 * connection goes on from the reactor once it is resolved.
+	 * 
+	 * @param connection
+	 * @param key
+	 *            Client's selection key.
+	 * @param endpoint
+	 */
+
+	private void resolveServer(final ProxyConnection connection,
+			final SelectionKey key, final Endpoint endpoint) {
+		connection.waitForServerSocket();
+		HostResolver.getInstance().resolve(endpoint.getHost(),
+				new ResolveListener() {
+					public void resolved(final InetAddress address) {
+						onReactor(new Runnable() {
+							public void run() {
+								if (key.isValid())
+									startServerConnection(connection, key,
+											endpoint, address);
+							}
+						});
 					}
-				}
-			};
 
-			threadPool.execute(command);
+					public void failed() {
+						onReactor(new Runnable() {
+							public void run() {
+								if (!key.isValid())
+									return;
+								logger.error("Unable to find server with address "
+										+ endpoint.getHost());
+								endpoint.failed();
+								serverDisconnect(null, key);
+							}
+						});
+					}
+				});
+	}
+
+	private void onReactor(Runnable task) {
+		if (getInterestOps().isReactorThread())
+			task.run();
+		else
+			getInterestOps().post(task);
+	}
+
+	/**
+	 * Opens a non blocking socket to the endpoint the client has to be
+	 * connected to and starts connecting it. If the connection can not be established
+	 * right away, the channel is registered for OP_CONNECT and the connection
+	 * is finished by the <i>connect</i> method once the selector reports it.
+	 * 
+	 * If the connection could not even be started, the client is
+	 * disconnected.
+	 * 
+	 * @param connection
+	 * @param key
+	 *            Client's selection key.
+	 * @param endpoint
+	 * @param address
+	 *            Endpoint's resolved address.
+	 */
+
+	private void startServerConnection(ProxyConnection connection,
+			SelectionKey key, Endpoint endpoint, InetAddress address) {
+		SocketChannel serverChannel = null;
+		try {
+			serverChannel = SocketChannel.open();
+			serverChannel.configureBlocking(false);
+			if (serverChannel.connect(new InetSocketAddress(address,
+					endpoint.getPort()))) {
+				register(serverChannel, 0);
+				endpoint.succeeded();
+				serverConnected(connection, serverChannel);
+			} else {
+				register(serverChannel, SelectionKey.OP_CONNECT);
+				PendingConnection pending = new PendingConnection(connection,
+						key, endpoint, serverChannel);
+				pending.timeout = wheel.schedule(pending, connectTimeout);
+				pendingConnections.put(serverChannel, pending);
+			}
+			return;
+		} catch (IOException e) {
+			logger.error("Unable to connect to server with address "
+					+ endpoint);
+		}
+		endpoint.failed();
+		serverDisconnect(serverChannel, key);
+	}
+
+	/**
+	 * Handles connect operations.
+	 * 
+	 * Finishes the connection to the server started by
+	 * <i>startServerConnection</i>, binds the server channel to its
+	 * ProxyConnection and writes the first stream to the server.
+	 * 
+	 */
+
+	public void connect(SelectionKey key) throws IOException {
+		SocketChannel serverChannel = (SocketChannel) key.channel();
+		if (warmStreams.owns(serverChannel)) {
+			warmStreams.connect(key);
+			return;
+		}
+		PendingConnection pending = pendingConnections.get(serverChannel);
+		if (pending == null) {
+			key.cancel();
+			serverChannel.close();
+			return;
 		}
+		try {
+			if (!serverChannel.finishConnect())
+				return;
+		} catch (IOException e) {
+			pendingConnections.remove(serverChannel);
+			pending.timeout.cancel();
+			logger.error("Unable to connect to server with address "
+					+ pending.server);
+			pending.server.failed();
+			serverDisconnect(serverChannel, pending.clientKey);
+			return;
+		}
+		pendingConnections.remove(serverChannel);
+		pending.timeout.cancel();
+		pending.server.succeeded();
+		serverConnected(pending.connection, serverChannel);
+	}
 
-		return serverChannel;
+	/**
+	 * Binds an already connected server channel to its ProxyConnection and
+	 * starts the stream negotiation with the server.
+	 * 
+	 * @param connection
+	 * @param serverChannel
+	 */
 
+	private void serverConnected(ProxyConnection connection,
+			SocketChannel serverChannel) {
+		connection.setServer(serverChannel);
+		connections.put(serverChannel, connection);
+		connection.writeFirstStreamToServer();
+		updateSelectionKeys(connection);
 	}
 
 	/**
@@ -141,6 +435,11 @@ public class ClientHandler extends Handler {
 
 	public void write(final SelectionKey key) throws IOException {
 		ProxyConnection connection = connections.get(key.channel());
+		if (connection == null) {
+			/* Disconnected by a worker while the write was pending */
+			key.cancel();
+			return;
+		}
 		try {
 			connection.writeTo((SocketChannel) key.channel());
 			updateSelectionKeys(connection);
@@ -152,29 +451,81 @@ public class ClientHandler extends Handler {
 	/**
 	 * Updates selector keys for a specific connection.
 	 * 
-	 * Always sets the OP_READ flag, in case any endpoint wants to write
-	 * something.
+	 * Sets the OP_READ flag unless the opposite channel is congested, in
+	 * which case reading stops until it writes its backlog down to the low
+	 * watermark. This keeps a fast sender from filling the proxy's memory
+	 * with what a slow receiver has not taken yet.
 	 * 
 	 * In case there's pending information in the write buffer for a specific
 	 * channel, sets the channel OP_WRITE flag.
 	 * 
+	 * Worker threads only ask the reactor to do it, once per connection no
+	 * matter how many reads they process before it gets to it, so the keys
+	 * are set from the state of the buffers when the reactor applies them.
+	 * 
 	 * @param connection
-	 * @throws ClosedChannelException
 	 */
 
-	private void updateSelectionKeys(ProxyConnection connection)
-			throws ClosedChannelException {
+	private void updateSelectionKeys(final ProxyConnection connection) {
+		if (getInterestOps().isReactorThread()) {
+			applySelectionKeys(connection);
+		} else if (connection.requestKeysUpdate()) {
+			getInterestOps().post(new Runnable() {
+				public void run() {
+					connection.keysUpdateStarted();
+					applySelectionKeys(connection);
+				}
+			});
+		}
+	}
+
+	private void applySelectionKeys(ProxyConnection connection) {
+		SocketChannel server = connection.getServerChannel();
+		SocketChannel client = connection.getClientChannel();
 		if (connection.hasServer())
-			updateChannelKeys(connection.hasInformationForChannel(connection
-					.getServerChannel()), connection.getServerChannel());
+			updateChannelKeys(canRead(connection, server),
+					connection.hasInformationForChannel(server), server);
 		if (connection.hasClient())
-			updateChannelKeys(connection.hasInformationForChannel(connection
-					.getClientChannel()), connection.getClientChannel());
+			updateChannelKeys(canRead(connection, client),
+					connection.hasInformationForChannel(client), client);
+	}
+
+	/**
+	 * Returns true if the given channel of the connection may be read: its
+	 * previous read is done and where its data goes is not congested.
+	 */
+
+	private boolean canRead(ProxyConnection connection, SocketChannel s) {
+		return !connection.isReadInFlight(s) && connection.canReadFrom(s);
+	}
+
+	/**
+	 * Closes whatever the given key belongs to: a warm stream, a connection
+	 * to a server still being established along with its client, or both
+	 * channels of a proxy connection.
+	 * 
+	 * @param key
+	 */
+
+	public void close(SelectionKey key) {
+		SocketChannel s = (SocketChannel) key.channel();
+		if (warmStreams.owns(s)) {
+			warmStreams.close(s);
+			return;
+		}
+		PendingConnection pending = pendingConnections.remove(s);
+		if (pending != null) {
+			pending.timeout.cancel();
+			serverDisconnect(s, pending.clientKey);
+			return;
+		}
+		disconnect(key);
+		close(s);
 	}
 
 	/**
-	 * Disconnects the channels associated with this key and then cancels the
-	 * key
+	 * Disconnects the channels associated with this key, gives their buffers
+	 * back to the pool and then cancels the key
 	 * 
 	 * @param key
 	 */
@@ -182,29 +533,166 @@ public class ClientHandler extends Handler {
 	private void disconnect(SelectionKey key) {
 		logger.info("Channel disconnected");
 		ProxyConnection conn = connections.get(key.channel());
-		if (conn != null) {
-			if (conn.hasClient())
-				connections.remove(conn.getClientChannel());
-			if (conn.hasServer())
-				connections.remove(conn.getServerChannel());
-		}
+		if (conn != null)
+			disconnect(conn);
 		key.cancel();
 	}
 
+	private void disconnect(ProxyConnection conn) {
+		if (conn.hasClient()) {
+			connections.remove(conn.getClientChannel());
+			close(conn.getClientChannel());
+		}
+		if (conn.hasServer()) {
+			connections.remove(conn.getServerChannel());
+			close(conn.getServerChannel());
+		}
+		conn.release();
+	}
+
+	/**
+	 * Closes a connection that missed one of its deadlines.
+	 * 
+	 * Connections that already reached the server are processed by worker
+	 * threads, so they are only marked as expired and closed by their mailbox
+	 * once no worker is using them.
+	 * 
+	 * @param connection
+	 * @param type
+	 */
+
+	private void expire(ProxyConnection connection, TimeoutType type) {
+		expirations.incrementAndGet(type.ordinal());
+		String user = connection.getClientUsername();
+		logger.info("Closing connection of "
+				+ ((user != null) ? user : "unauthenticated client") + ", "
+				+ type + " timeout");
+		SelectionKey key = connection.getClientChannel().keyFor(selector);
+		if (connection.hasConnectedServer() && key != null && key.isValid()) {
+			connection.expire();
+			connection.getMailbox().post(key);
+		} else {
+			disconnect(connection);
+		}
+	}
+
+	private void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Unable to close channel");
+		}
+	}
+
 	/**
 	 * Closes the connection when it is not possible to connect to the server
 	 * 
 	 * @param serverChannel
 	 * @param key
-	 * @throws IOException
 	 */
 
-	private void serverDisconnect(SocketChannel serverChannel, SelectionKey key)
-			throws IOException {
-		connections.remove(key.channel());
-		serverChannel.close();
-		key.channel().close();
+	private void serverDisconnect(SocketChannel serverChannel, SelectionKey key) {
+		ProxyConnection conn = connections.remove(key.channel());
+		if (conn != null)
+			conn.release();
+		if (serverChannel != null)
+			close(serverChannel);
+		close((SocketChannel) key.channel());
 		key.cancel();
 	}
 
+	/**
+	 * Returns the given timeout property, in milliseconds, or the default if
+	 * it is missing or not positive.
+	 */
+
+	private long getTimeout(String property, long defaultValue) {
+		String value = ConfigurationCommands.getInstance().getProperty(
+				property);
+		try {
+			long timeout = Long.parseLong(value.trim());
+			return (timeout > 0) ? timeout : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Single timeout kept by every connection, always armed for its nearest
+	 * deadline. When it fires it checks which deadline is actually due: the
+	 * handshake until the connection reaches the server, and then the idle
+	 * and write stall ones. If none is, it is armed again.
+	 */
+
+	private class DeadlineChecker implements TimeoutListener {
+
+		private ProxyConnection connection;
+
+		DeadlineChecker(ProxyConnection connection) {
+			this.connection = connection;
+		}
+
+		public void expired(Timeout timeout) {
+			if (!connection.getClientChannel().isOpen())
+				return;
+			if (!connection.connected()) {
+				/* The connect timeout is in charge while connecting */
+				if (connection.isConnectingToServer())
+					scheduleDeadlineCheck(connection, connectTimeout);
+				else
+					expire(connection, TimeoutType.handshake);
+				return;
+			}
+			long now = System.currentTimeMillis();
+			long idleLeft = connection.getLastActivity() + idleTimeout - now;
+			if (idleLeft <= 0) {
+				expire(connection, TimeoutType.idle);
+				return;
+			}
+			long next = Math.min(idleLeft, writeStallTimeout);
+			long stalledSince = connection.getWriteStalledSince();
+			if (stalledSince != 0) {
+				long stallLeft = stalledSince + writeStallTimeout - now;
+				if (stallLeft <= 0) {
+					expire(connection, TimeoutType.writeStall);
+					return;
+				}
+				next = Math.min(next, stallLeft);
+			}
+			scheduleDeadlineCheck(connection, next);
+		}
+	}
+
+	private class PendingConnection implements TimeoutListener {
+
+		ProxyConnection connection;
+		SelectionKey clientKey;
+		Endpoint server;
+		SocketChannel serverChannel;
+		Timeout timeout;
+
+		PendingConnection(ProxyConnection connection, SelectionKey clientKey,
+				Endpoint server, SocketChannel serverChannel) {
+			this.connection = connection;
+			this.clientKey = clientKey;
+			this.server = server;
+			this.serverChannel = serverChannel;
+		}
+
+		/**
+		 * Closes the pending server connection along with its client once
+		 * the <i>connectTimeout</i> property (in milliseconds) has passed.
+		 */
+
+		public void expired(Timeout timeout) {
+			if (pendingConnections.remove(serverChannel) == null)
+				return;
+			expirations.incrementAndGet(TimeoutType.connect.ordinal());
+			logger.error("Timed out connecting to server with address "
+					+ server);
+			server.failed();
+			serverDisconnect(serverChannel, clientKey);
+		}
+	}
+
 }
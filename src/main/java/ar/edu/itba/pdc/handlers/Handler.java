@@ -5,26 +5,56 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
+import ar.edu.itba.pdc.nio.InterestOpsQueue;
+
 public abstract class Handler implements TCPHandler {
 
 	private Selector selector;
+	private InterestOpsQueue interestOps;
 	
-	public Handler(Selector selector) {
+	public Handler(Selector selector, InterestOpsQueue interestOps) {
 		this.selector = selector;
+		this.interestOps = interestOps;
 	}
 	
-	protected void updateChannelKeys(boolean pendingInformation,
-			SocketChannel channel) throws ClosedChannelException {
+	/**
+	 * Sets the operations the selector waits for on the given channel. The
+	 * change is handed to the reactor, which applies it before selecting
+	 * again.
+	 * 
+	 * @param readable
+	 *            False while the channel must not be read, for instance
+	 *            because the channel its data goes to is congested.
+	 * @param pendingInformation
+	 *            True if there is something to write to the channel.
+	 * @param channel
+	 */
+
+	protected void updateChannelKeys(boolean readable,
+			boolean pendingInformation, SocketChannel channel) {
+		int ops = 0;
+		if (readable)
+			ops |= SelectionKey.OP_READ;
 		if (pendingInformation)
-			channel.register(selector, SelectionKey.OP_READ
-					| SelectionKey.OP_WRITE);
-		else
-			channel.register(selector, SelectionKey.OP_READ);
-		selector.wakeup();
+			ops |= SelectionKey.OP_WRITE;
+		interestOps.update(channel, ops);
 	}
 	
+	protected InterestOpsQueue getInterestOps() {
+		return interestOps;
+	}
+
+	/**
+	 * Registers a channel opened by this handler, which is attached to the
+	 * key so the reactor hands it the channel's events.
+	 * 
+	 * @param s
+	 * @param ops
+	 * @throws ClosedChannelException
+	 */
+
 	protected void register(SocketChannel s, int ops) throws ClosedChannelException {
-		s.register(selector, ops);
+		s.register(selector, ops, this);
 	}
 	
 }
@@ -7,7 +7,15 @@ import java.nio.channels.SocketChannel;
 public interface TCPHandler {
 
 	void accept(SocketChannel channel) throws IOException;
-	SocketChannel read(SelectionKey key) throws IOException;
+	void read(SelectionKey key) throws IOException;
     void write(SelectionKey key) throws IOException;
+    void connect(SelectionKey key) throws IOException;
+
+	/**
+	 * Closes the channel of the given key, and every channel paired with it,
+	 * after one of the other methods failed unexpectedly.
+	 */
+
+	void close(SelectionKey key);
 	
 }
@@ -0,0 +1,479 @@
+package ar.edu.itba.pdc.handlers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ar.edu.itba.pdc.filters.Multiplexing;
+import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.metrics.Counter;
+import ar.edu.itba.pdc.metrics.Gauge;
+import ar.edu.itba.pdc.metrics.Metrics;
+import ar.edu.itba.pdc.nio.HostResolver;
+import ar.edu.itba.pdc.nio.InterestOpsQueue;
+import ar.edu.itba.pdc.nio.ResolveListener;
+import ar.edu.itba.pdc.nio.TimeoutListener;
+import ar.edu.itba.pdc.nio.TimingWheel;
+import ar.edu.itba.pdc.nio.TimingWheel.Timeout;
+import ar.edu.itba.pdc.proxy.ProxyConnection;
+import ar.edu.itba.pdc.upstream.Endpoint;
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
+import ar.edu.itba.pdc.utils.ConfigurationListener;
+
+public class WarmStreamPool implements ConfigurationListener {
+
+	/* Defaults of the warmStreams, warmStreamsMax and warmStreamMaxAge properties */
+	private static final int DEFAULT_SIZE = 1;
+	private static final int DEFAULT_MAX = 16;
+	private static final long DEFAULT_MAX_AGE = 20000;
+	private static final int BUFFER_SIZE = 4096;
+
+	private static final Counter HITS = counter("upstream.warmHits");
+	private static final Counter MISSES = counter("upstream.warmMisses");
+	private static final Counter OPENED = counter("upstream.warmOpened");
+	private static final Counter DISCARDED = counter("upstream.warmDiscarded");
+
+	/* Warm streams ready to be used, in every reactor */
+	private static AtomicLong idle = new AtomicLong();
+
+	private TCPHandler handler;
+	private Selector selector;
+	private InterestOpsQueue interestOps;
+	private TimingWheel wheel;
+	private long connectTimeout;
+	private int size;
+	private int max;
+	private long maxAge;
+
+	/* Every stream being opened or ready, by channel */
+	private Map<SocketChannel, WarmStream> streams = new HashMap<SocketChannel, WarmStream>();
+	/* Ready streams of each endpoint, oldest first */
+	private Map<Endpoint, Deque<WarmStream>> ready = new HashMap<Endpoint, Deque<WarmStream>>();
+	/* Streams being opened or ready for each endpoint */
+	private Map<Endpoint, Integer> counts = new HashMap<Endpoint, Integer>();
+	/* Clients that sent their stream header and did not ask for a stream yet */
+	private Map<Endpoint, Integer> promised = new HashMap<Endpoint, Integer>();
+
+	private XMPPLogger logger = XMPPLogger.getInstance();
+
+	/**
+	 * Keeps, for each upstream endpoint, a few connections that already went through
+	 * the opening of the stream, up to the server's features, so a client
+	 * that finishes authenticating only has to wait for the server to accept
+	 * its credentials.
+	 *
+	 * There is one pool per reactor, and <i>warmStreams</i> ready streams per
+	 * endpoint are split among them, as clients are spread evenly among the
+	 * reactors. A pool also opens one more stream, speculatively, for every
+	 * client that starts a stream, up to its share of <i>warmStreamsMax</i>,
+	 * which is at least one. No new streams are opened to endpoints that are
+	 * not healthy. Unused streams are closed after
+	 * <i>warmStreamMaxAge</i> milliseconds, before servers give up on them.
+	 * Once an endpoint is dropped from the upstreams its streams are closed,
+	 * no new ones are opened to it and those that replace it are filled.
+	 *
+	 * Belongs to a single reactor and must only be used by its thread. Its
+	 * channels are registered on the reactor's selector with the given
+	 * handler attached, which must pass their events on to the pool.
+	 *
+	 * @param handler
+	 * @param selector
+	 * @param interestOps
+	 * @param wheel
+	 * @param connectTimeout
+	 *            Milliseconds a stream has to reach the server's features.
+	 * @param reactor
+	 *            Position of the pool's reactor.
+	 * @param reactors
+	 *            Amount of reactors.
+	 */
+
+	public WarmStreamPool(TCPHandler handler, Selector selector,
+			InterestOpsQueue interestOps, TimingWheel wheel,
+			long connectTimeout, int reactor, int reactors) {
+		this.handler = handler;
+		this.selector = selector;
+		this.interestOps = interestOps;
+		this.wheel = wheel;
+		this.connectTimeout = connectTimeout;
+		this.size = share(getProperty("warmStreams", DEFAULT_SIZE), reactor,
+				reactors);
+		this.max = Math.max(size, Math.max(1, share(getProperty(
+				"warmStreamsMax", DEFAULT_MAX), reactor, reactors)));
+		this.maxAge = getProperty("warmStreamMaxAge", DEFAULT_MAX_AGE);
+		Metrics.getInstance().gauge("upstream.warmIdle", new Gauge() {
+			public long getValue() {
+				return idle.get();
+			}
+		});
+		/* Registered after Multiplexing, so endpoints are retired by then */
+		ConfigurationCommands.getInstance().addListener(this);
+	}
+
+	public void propertyChanged(String property, String value) {
+		if (!property.equals("upstreams") && !property.equals("defaultServer")
+				&& !property.equals("multiplex"))
+			return;
+		interestOps.post(new Runnable() {
+			public void run() {
+				prune();
+				fill(Multiplexing.getInstance().getEndpoints());
+			}
+		});
+	}
+
+	/**
+	 * Returns true if the given channel is one of the pool's streams.
+	 *
+	 * @param channel
+	 */
+
+	public boolean owns(SocketChannel channel) {
+		return streams.containsKey(channel);
+	}
+
+	/**
+	 * Takes a ready stream to the given endpoint out of the pool, or returns
+	 * null if there is none. The stream is left registered for reading, with
+	 * the pool's handler attached, and its features already read.
+	 *
+	 * @param server
+	 */
+
+	public SocketChannel acquire(Endpoint server) {
+		unpromise(server);
+		Deque<WarmStream> serverReady = ready.get(server);
+		WarmStream stream = (serverReady == null) ? null : serverReady.poll();
+		if (stream == null) {
+			MISSES.increment();
+			fill(server);
+			return null;
+		}
+		HITS.increment();
+		idle.decrementAndGet();
+		streams.remove(stream.channel);
+		stream.timeout.cancel();
+		count(server, -1);
+		fill(server);
+		return stream.channel;
+	}
+
+	/**
+	 * Called when a client starts a stream, before it is known which server
+	 * it goes to: opens one more stream to the given endpoint, most likely
+	 * the one the default server would place it on.
+	 *
+	 * @param server
+	 */
+
+	public void speculate(Endpoint server) {
+		if (server == null)
+			return;
+		Integer current = promised.get(server);
+		int next = (current == null) ? 1 : current + 1;
+		promised.put(server, Math.min(max, next));
+		fill(server);
+	}
+
+	/**
+	 * Opens streams to each of the given endpoints until they have as many
+	 * as the pool keeps.
+	 *
+	 * @param servers
+	 */
+
+	public void fill(Collection<Endpoint> servers) {
+		for (Endpoint server : servers)
+			fill(server);
+	}
+
+	/**
+	 * Finishes connecting one of the pool's streams and opens the XMPP
+	 * stream.
+	 *
+	 * @param key
+	 */
+
+	public void connect(SelectionKey key) {
+		WarmStream stream = streams.get(key.channel());
+		try {
+			if (!stream.channel.finishConnect())
+				return;
+			sendHeader(stream);
+		} catch (IOException e) {
+			logger.warn("Unable to open warm stream to " + stream.server);
+			stream.server.failed();
+			discard(stream);
+		}
+	}
+
+	/**
+	 * Reads what the server of one of the pool's streams sent. The stream is
+	 * ready once the server's features arrive; afterwards, anything the
+	 * server sends, including closing the connection, makes the stream
+	 * useless.
+	 *
+	 * @param key
+	 */
+
+	public void read(SelectionKey key) {
+		WarmStream stream = streams.get(key.channel());
+		try {
+			if (stream.buffer == null || stream.channel.read(stream.buffer) == -1
+					|| !stream.buffer.hasRemaining()) {
+				discard(stream);
+				return;
+			}
+		} catch (IOException e) {
+			discard(stream);
+			return;
+		}
+		String read = new String(stream.buffer.array(), 0,
+				stream.buffer.position());
+		if (read.contains("</stream:features>")
+				|| read.contains("<stream:features/>"))
+			ready(stream);
+	}
+
+	/**
+	 * Closes one of the pool's streams.
+	 *
+	 * @param channel
+	 */
+
+	public void close(SocketChannel channel) {
+		WarmStream stream = streams.get(channel);
+		if (stream != null)
+			discard(stream);
+	}
+
+	/**
+	 * Closes every stream to an endpoint that was retired.
+	 */
+
+	private void prune() {
+		for (WarmStream stream : new ArrayList<WarmStream>(streams.values()))
+			if (stream.server.isRetired())
+				discard(stream);
+		Iterator<Endpoint> it = promised.keySet().iterator();
+		while (it.hasNext())
+			if (it.next().isRetired())
+				it.remove();
+		it = ready.keySet().iterator();
+		while (it.hasNext())
+			if (it.next().isRetired())
+				it.remove();
+	}
+
+	private void fill(Endpoint server) {
+		if (server == null || !server.isHealthy() || server.isRetired())
+			return;
+		Integer extra = promised.get(server);
+		int target = Math.min(max, size + ((extra == null) ? 0 : extra));
+		for (int i = count(server, 0); i < target; i++)
+			start(server);
+	}
+
+	/**
+	 * Starts opening a stream to the given endpoint, once its address is
+	 * resolved.
+	 */
+
+	private void start(final Endpoint server) {
+		count(server, 1);
+		OPENED.increment();
+		HostResolver.getInstance().resolve(server.getHost(),
+				new ResolveListener() {
+					public void resolved(final InetAddress address) {
+						onReactor(new Runnable() {
+							public void run() {
+								connectTo(server, address);
+							}
+						});
+					}
+
+					public void failed() {
+						onReactor(new Runnable() {
+							public void run() {
+								server.failed();
+								count(server, -1);
+							}
+						});
+					}
+				});
+	}
+
+	private void connectTo(Endpoint server, InetAddress address) {
+		WarmStream stream = new WarmStream(server);
+		try {
+			stream.channel = SocketChannel.open();
+			stream.channel.configureBlocking(false);
+			boolean connected = stream.channel.connect(new InetSocketAddress(
+					address, server.getPort()));
+			stream.channel.register(selector, connected ? SelectionKey.OP_READ
+					: SelectionKey.OP_CONNECT, handler);
+			streams.put(stream.channel, stream);
+			stream.timeout = wheel.schedule(stream, connectTimeout);
+			if (connected)
+				sendHeader(stream);
+		} catch (IOException e) {
+			logger.warn("Unable to open warm stream to " + server);
+			server.failed();
+			if (stream.channel == null) {
+				count(server, -1);
+				return;
+			}
+			streams.put(stream.channel, stream);
+			discard(stream);
+		}
+	}
+
+	/**
+	 * Sends the stream header of a just connected stream.
+	 */
+
+	private void sendHeader(WarmStream stream) throws IOException {
+		ByteBuffer header = ByteBuffer.wrap(ProxyConnection
+				.serverStreamFor(stream.server.getDomain()));
+		stream.channel.write(header);
+		if (header.hasRemaining())
+			throw new IOException("Stream header not written");
+		stream.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		interestOps.update(stream.channel, SelectionKey.OP_READ);
+	}
+
+	private void ready(WarmStream stream) {
+		stream.server.succeeded();
+		if (stream.server.isRetired()) {
+			discard(stream);
+			return;
+		}
+		stream.buffer = null;
+		stream.timeout.cancel();
+		stream.timeout = wheel.schedule(stream, maxAge);
+		Deque<WarmStream> serverReady = ready.get(stream.server);
+		if (serverReady == null) {
+			serverReady = new ArrayDeque<WarmStream>();
+			ready.put(stream.server, serverReady);
+		}
+		serverReady.add(stream);
+		idle.incrementAndGet();
+	}
+
+	/**
+	 * Closes one of the pool's streams.
+	 */
+
+	private void discard(WarmStream stream) {
+		if (streams.remove(stream.channel) == null)
+			return;
+		DISCARDED.increment();
+		count(stream.server, -1);
+		Deque<WarmStream> serverReady = ready.get(stream.server);
+		if (serverReady != null && serverReady.remove(stream))
+			idle.decrementAndGet();
+		if (stream.timeout != null)
+			stream.timeout.cancel();
+		SelectionKey key = stream.channel.keyFor(selector);
+		if (key != null)
+			key.cancel();
+		try {
+			stream.channel.close();
+		} catch (IOException e) {
+			logger.error("Unable to close warm stream");
+		}
+	}
+
+	private int count(Endpoint server, int delta) {
+		Integer current = counts.get(server);
+		int next = ((current == null) ? 0 : current) + delta;
+		if (next == 0)
+			counts.remove(server);
+		else
+			counts.put(server, next);
+		return next;
+	}
+
+	private void unpromise(Endpoint server) {
+		Integer current = promised.get(server);
+		if (current == null)
+			return;
+		if (current <= 1)
+			promised.remove(server);
+		else
+			promised.put(server, current - 1);
+	}
+
+	private void onReactor(Runnable task) {
+		if (interestOps.isReactorThread())
+			task.run();
+		else
+			interestOps.post(task);
+	}
+
+	private static long getProperty(String property, long defaultValue) {
+		String value = ConfigurationCommands.getInstance().getProperty(
+				property);
+		try {
+			long parsed = Long.parseLong(value.trim());
+			return (parsed >= 0) ? parsed : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns the part of the given total that falls to the given reactor,
+	 * the first ones taking what does not divide evenly.
+	 */
+
+	private static int share(long total, int reactor, int reactors) {
+		return (int) (total / reactors + ((reactor < total % reactors) ? 1 : 0));
+	}
+
+	private static Counter counter(String name) {
+		return Metrics.getInstance().counter(name);
+	}
+
+	/**
+	 * A stream of the pool. Its timeout closes it if it does not reach the
+	 * server's features in time, or once it is too old to be used.
+	 */
+
+	private class WarmStream implements TimeoutListener {
+
+		final Endpoint server;
+		SocketChannel channel;
+		ByteBuffer buffer;
+		Timeout timeout;
+
+		WarmStream(Endpoint server) {
+			this.server = server;
+		}
+
+		public void expired(Timeout timeout) {
+			if (buffer == null && channel.isConnected()) {
+				/* Never used, the clients that would have used it are gone */
+				unpromise(server);
+				discard(this);
+				fill(server);
+			} else {
+				logger.warn("Timed out opening warm stream to " + server);
+				server.failed();
+				discard(this);
+			}
+		}
+	}
+}
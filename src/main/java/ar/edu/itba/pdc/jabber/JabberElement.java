@@ -4,6 +4,7 @@ package ar.edu.itba.pdc.jabber;
 public abstract class JabberElement {
 	
 	public String from;
+	private boolean modified = false;
 	
 	protected JabberElement(String from) {
 		this.from = from;
@@ -37,6 +38,44 @@ public abstract class JabberElement {
 	
 	public void setFrom(String from) {
 		this.from = from;
+		modified();
+	}
+	
+	/**
+	 * Fills in the sender of an element the client sent without one. It does
+	 * not mark the element as modified: the server stamps the sender of what
+	 * clients send anyway, so it is only kept for the filters and the
+	 * original text can still be written as it is.
+	 * 
+	 * @param from
+	 */
+	
+	public void stampFrom(String from) {
+		this.from = from;
+	}
+	
+	/**
+	 * Returns true if the element was changed after being parsed, so its
+	 * original text no longer represents it.
+	 * 
+	 * @return
+	 */
+	
+	public boolean isModified() {
+		return modified;
+	}
+	
+	/**
+	 * Marks the element as equal to its original text. Called once it was
+	 * completely parsed.
+	 */
+	
+	public void parsed() {
+		this.modified = false;
+	}
+	
+	protected void modified() {
+		this.modified = true;
 	}
 	
 }
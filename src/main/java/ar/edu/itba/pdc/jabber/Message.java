@@ -32,6 +32,7 @@ public class Message extends JabberElement {
 
 	public void setMessage(String message) {
 		this.message = message;
+		modified();
 	}
 
 	/**
@@ -52,6 +53,7 @@ public class Message extends JabberElement {
 
 	public void setActive(String active) {
 		this.active = active;
+		modified();
 	}
 
 	/**
@@ -72,6 +74,7 @@ public class Message extends JabberElement {
 
 	public void setActiveXmlns(String xmlns) {
 		this.activeXmlns = xmlns;
+		modified();
 	}
 
 	/**
@@ -92,6 +95,7 @@ public class Message extends JabberElement {
 
 	public void setTo(String to) {
 		this.to = to;
+		modified();
 	}
 
 	/**
@@ -112,6 +116,7 @@ public class Message extends JabberElement {
 
 	public void setType(String type) {
 		this.type = type;
+		modified();
 	}
 
 	/**
@@ -132,6 +137,7 @@ public class Message extends JabberElement {
 
 	public void setErrorCode(int errorCode) {
 		this.errorCode = errorCode;
+		modified();
 	}
 
 	/**
@@ -152,6 +158,7 @@ public class Message extends JabberElement {
 
 	public void setErrorType(String errorType) {
 		this.errorType = errorType;
+		modified();
 	}
 
 	/**
@@ -172,34 +179,7 @@ public class Message extends JabberElement {
 
 	public void setErrorXMLBody(String errorXML) {
 		this.errorXMLBody = errorXML;
-	}
-
-	/**
-	 * Returns the message as an XML string, using a default template and
-	 * setting up values using the parameters contained
-	 * 
-	 * @return
-	 */
-
-	public String getXMLMessage() {
-		StringBuffer xmlMessage = new StringBuffer();
-		xmlMessage.append("<message from='" + getFrom() + "' to='" + getTo()
-				+ "' type='" + ((getType() != null) ? getType() : "chat")
-				+ "'>");
-
-		if (getActive() != null && !getActive().equals(""))
-			xmlMessage.append("<active xmlns='" + getActiveXmlns() + "'>"
-					+ getActive() + "</active>");
-
-		xmlMessage.append("<body>" + getMessage() + "</body>");
-
-		if (errorCode != 0)
-			xmlMessage.append("<error code='" + errorCode + "' type='"
-					+ errorType + "'>" + errorXMLBody + "</error>");
-
-		xmlMessage.append("</message>");
-
-		return xmlMessage.toString();
+		modified();
 	}
 
 }
@@ -9,6 +9,18 @@ public class Presence extends JabberElement {
 		this.to = to;
 	}
 	
+	/**
+	 * Sets the sender of the presence. Unlike the other setters, it does not
+	 * mark the presence as modified: the server stamps the sender of every
+	 * presence anyway, so it is only kept for the filters.
+	 * 
+	 * @param from
+	 */
+	
+	public void setFrom(String from) {
+		this.from = from;
+	}
+	
 	/**
 	 * Returns the type of the presence
 	 * 
@@ -37,6 +49,7 @@ public class Presence extends JabberElement {
 	
 	public void setType(String type) {
 		this.type = type;
+		modified();
 	}
 	
 	/**
@@ -47,6 +60,7 @@ public class Presence extends JabberElement {
 	
 	public void setDelay(String delay) {
 		this.delay = delay;
+		modified();
 	}
 	
 	/**
@@ -67,6 +81,7 @@ public class Presence extends JabberElement {
 	
 	public void setTo(String to) {
 		this.to = to;
+		modified();
 	}
 	
 	
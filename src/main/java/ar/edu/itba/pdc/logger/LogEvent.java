@@ -0,0 +1,45 @@
+package ar.edu.itba.pdc.logger;
+
+import org.apache.log4j.Level;
+
+public class LogEvent {
+
+	private final long timestamp;
+	private final Level level;
+	private final String thread;
+	private final Object message;
+	private final Throwable throwable;
+
+	/**
+	 * Captures a log call on the calling thread. The message is only turned
+	 * into a string by the writer thread.
+	 */
+
+	public LogEvent(Level level, Object message, Throwable throwable) {
+		this.timestamp = System.currentTimeMillis();
+		this.level = level;
+		this.thread = Thread.currentThread().getName();
+		this.message = message;
+		this.throwable = throwable;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public Level getLevel() {
+		return level;
+	}
+
+	public String getThread() {
+		return thread;
+	}
+
+	public Object getMessage() {
+		return message;
+	}
+
+	public Throwable getThrowable() {
+		return throwable;
+	}
+}
@@ -0,0 +1,82 @@
+package ar.edu.itba.pdc.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class LogRing {
+
+	private final int mask;
+	private final AtomicReferenceArray<LogEvent> slots;
+	/* Tells which turn each slot is in, so producers never overwrite an event
+	 * that was not consumed yet */
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0;
+
+	/**
+	 * Creates a bounded ring that any number of threads can offer to without
+	 * locking, and a single thread polls from.
+	 *
+	 * @param capacity
+	 *            Rounded up to the next power of two.
+	 */
+
+	public LogRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<LogEvent>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	/**
+	 * Adds an event to the ring. Never blocks.
+	 *
+	 * @param event
+	 * @return false if the ring is full, in which case the event is dropped.
+	 */
+
+	public boolean offer(LogEvent event) {
+		long position = tail.get();
+		while (true) {
+			int index = (int) position & mask;
+			long sequence = sequences.get(index);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.lazySet(index, event);
+					sequences.set(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (sequence < position) {
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Takes the oldest event from the ring. Must only be called by the
+	 * consumer thread.
+	 *
+	 * @return the event, or null if the ring is empty.
+	 */
+
+	public LogEvent poll() {
+		int index = (int) head & mask;
+		if (sequences.get(index) != head + 1)
+			return null;
+		LogEvent event = slots.get(index);
+		slots.lazySet(index, null);
+		sequences.set(index, head + mask + 1);
+		head++;
+		return event;
+	}
+
+	public boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+}
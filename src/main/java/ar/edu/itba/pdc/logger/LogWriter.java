@@ -0,0 +1,121 @@
+package ar.edu.itba.pdc.logger;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class LogWriter implements Runnable {
+
+	/* How long the writer sleeps when there is nothing to write */
+	private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private LogRing ring;
+	private AtomicLong dropped;
+	private String file;
+	private Writer out;
+	private SimpleDateFormat dateFormat = new SimpleDateFormat(
+			"yyyy-MM-dd HH:mm:ss.SSS");
+	private Date date = new Date();
+	private volatile boolean running = true;
+
+	/**
+	 * Creates the writer of the asynchronous logging mode.
+	 *
+	 * @param ring
+	 *            Events to write, polled only by this writer.
+	 * @param dropped
+	 *            Events that did not fit in the ring. The writer reports and
+	 *            resets it.
+	 * @param file
+	 *            Appended one line per event.
+	 */
+
+	public LogWriter(LogRing ring, AtomicLong dropped, String file) {
+		this.ring = ring;
+		this.dropped = dropped;
+		this.file = file;
+	}
+
+	/**
+	 * Writes every event in the ring as a batch and flushes once per batch,
+	 * then sleeps until there are more.
+	 */
+
+	public void run() {
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(file, true), UTF8), 64 * 1024);
+		} catch (IOException e) {
+			System.out.println("Error opening the log file " + file);
+			return;
+		}
+		while (running || !ring.isEmpty()) {
+			if (!writeBatch())
+				LockSupport.parkNanos(this, IDLE_WAIT);
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Error closing the log file " + file);
+		}
+	}
+
+	/**
+	 * Stops the writer once the events already in the ring were written.
+	 */
+
+	public void stop() {
+		running = false;
+	}
+
+	private boolean writeBatch() {
+		long lost = dropped.getAndSet(0);
+		LogEvent event = ring.poll();
+		if (event == null && lost == 0)
+			return false;
+		try {
+			if (lost > 0)
+				writeLine(System.currentTimeMillis(), "WARN", Thread
+						.currentThread().getName(), lost
+						+ " log events dropped, the log ring was full");
+			for (; event != null; event = ring.poll()) {
+				writeLine(event.getTimestamp(), event.getLevel().toString(),
+						event.getThread(), String.valueOf(event.getMessage()));
+				if (event.getThrowable() != null)
+					event.getThrowable().printStackTrace(new PrintWriter(out));
+			}
+			out.flush();
+		} catch (IOException e) {
+			System.out.println("Error writing the log file " + file);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a line like
+	 * <i>2013-06-18 17:30:59.042 INFO [worker-1] message</i>.
+	 */
+
+	private void writeLine(long timestamp, String level, String thread,
+			String message) throws IOException {
+		date.setTime(timestamp);
+		out.write(dateFormat.format(date));
+		out.write(' ');
+		out.write(level);
+		out.write(" [");
+		out.write(thread);
+		out.write("] ");
+		out.write(message);
+		out.write('\n');
+	}
+}
@@ -1,22 +1,40 @@
 package ar.edu.itba.pdc.logger;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.HTMLLayout;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-public class XMPPLogger {
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
+import ar.edu.itba.pdc.utils.ConfigurationListener;
+
+public class XMPPLogger implements ConfigurationListener {
+
+	/* Events waiting to be written in asynchronous mode */
+	private static final int RING_CAPACITY = 8192;
+	private static final String ASYNC_FILE = "logs.log";
 
 	private static XMPPLogger instance;
 	private Logger logger;
 
+	private volatile boolean async = true;
+	private volatile Level level = Level.DEBUG;
+	private LogRing ring = new LogRing(RING_CAPACITY);
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong droppedTotal = new AtomicLong();
+	private LogWriter writer;
+
 	private XMPPLogger() throws IOException {
 		logger = Logger.getLogger(XMPPLogger.class);
 		logger.addAppender(new FileAppender(new HTMLLayout(), "logs.html"));
+		logger.setLevel(level);
+		startWriter();
 	}
 
-	public static XMPPLogger getInstance() {
+	public static synchronized XMPPLogger getInstance() {
 		try {
 			if (instance == null)
 				instance = new XMPPLogger();
@@ -26,23 +44,94 @@ public class XMPPLogger {
 		return instance;
 	}
 
+	/**
+	 * Applies the logging properties of the configuration and follows their
+	 * changes. Until this is called the logger is asynchronous and logs
+	 * every level.
+	 *
+	 * @param config
+	 */
+
+	public void configure(ConfigurationCommands config) {
+		for (String property : new String[] { "logLevel", "asyncLogging" }) {
+			if (config.hasProperty(property))
+				propertyChanged(property, config.getProperty(property));
+		}
+		config.addListener(this);
+	}
+
+	public void propertyChanged(String property, String value) {
+		if (property.equals("logLevel"))
+			setLevel(Level.toLevel(value, level));
+		else if (property.equals("asyncLogging"))
+			async = value.equalsIgnoreCase("enabled");
+	}
+
+	public void setLevel(Level level) {
+		this.level = level;
+		logger.setLevel(level);
+	}
+
+	/**
+	 * Returns how many events were dropped because the ring of the
+	 * asynchronous mode was full.
+	 */
+
+	public long getDroppedEvents() {
+		return droppedTotal.get();
+	}
+
 	public void info(Object message) {
-		logger.info(message);
+		log(Level.INFO, message, null);
 	}
 
 	public void warn(Object message) {
-		logger.warn(message);
+		log(Level.WARN, message, null);
 	}
 
 	public void debug(Object message) {
-		logger.debug(message);
+		log(Level.DEBUG, message, null);
 	}
 
 	public void error(Object message) {
-		logger.error(message);
+		log(Level.ERROR, message, null);
 	}
 
 	public void error(Object message, Throwable t) {
-		logger.error(message, t);
+		log(Level.ERROR, message, t);
+	}
+
+	/**
+	 * In asynchronous mode the event is handed to the writer thread without
+	 * blocking; if the ring is full it is dropped and counted. Otherwise it
+	 * is written by log4j on the calling thread.
+	 */
+
+	private void log(Level eventLevel, Object message, Throwable t) {
+		if (!eventLevel.isGreaterOrEqual(level))
+			return;
+		if (!async) {
+			logger.log(eventLevel, message, t);
+		} else if (!ring.offer(new LogEvent(eventLevel, message, t))) {
+			dropped.incrementAndGet();
+			droppedTotal.incrementAndGet();
+		}
+	}
+
+	private void startWriter() {
+		writer = new LogWriter(ring, dropped, ASYNC_FILE);
+		final Thread thread = new Thread(writer, "log-writer");
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				writer.stop();
+				try {
+					thread.join(1000);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
 	}
 }
@@ -0,0 +1,78 @@
+package ar.edu.itba.pdc.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Counter {
+
+	/* Longs between stripes, so each one has a cache line of its own */
+	private static final int PADDING = 8;
+	private static final int STRIPES = stripes();
+
+	private AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+	private long lastSum = 0;
+	private long lastSample = System.nanoTime();
+	private volatile long perSecond = 0;
+
+	/**
+	 * Counter meant to be updated from the hot path by many threads at once.
+	 * Every thread adds to one of several stripes, picked by its id, so they
+	 * seldom write to the same cache line; reading it adds every stripe up.
+	 *
+	 * Created through <i>Metrics.counter</i>.
+	 */
+
+	Counter() {
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long delta) {
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		cells.getAndAdd(stripe * PADDING, delta);
+	}
+
+	/**
+	 * Returns the total, which may miss updates made while adding it up.
+	 */
+
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+	/**
+	 * Returns how much the counter grew per second between the last two
+	 * samples taken by the metrics registry.
+	 */
+
+	public long getPerSecond() {
+		return perSecond;
+	}
+
+	/**
+	 * Updates the per second rate. Only called by the registry's sampler.
+	 *
+	 * @param now
+	 *            System nanoTime of the sample.
+	 */
+
+	void sample(long now) {
+		long sum = get();
+		long elapsed = now - lastSample;
+		if (elapsed > 0)
+			perSecond = (sum - lastSum) * 1000000000L / elapsed;
+		lastSum = sum;
+		lastSample = now;
+	}
+
+	private static int stripes() {
+		int stripes = 1;
+		while (stripes < 2 * Runtime.getRuntime().availableProcessors())
+			stripes <<= 1;
+		return stripes;
+	}
+}
@@ -0,0 +1,6 @@
+package ar.edu.itba.pdc.metrics;
+
+public interface Gauge {
+
+	public long getValue();
+}
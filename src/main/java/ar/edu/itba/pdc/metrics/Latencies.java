@@ -0,0 +1,145 @@
+package ar.edu.itba.pdc.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import ar.edu.itba.pdc.metrics.enumerations.Direction;
+import ar.edu.itba.pdc.stanzas.Stanza;
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
+import ar.edu.itba.pdc.utils.ConfigurationListener;
+
+public class Latencies implements ConfigurationListener {
+
+	/* Stanza kinds with a recorder of their own */
+	private static final String[] KINDS = { "message", "presence", "other" };
+	private static final int MESSAGE = 0, PRESENCE = 1, OTHER = 2;
+
+	private static Latencies instance = new Latencies();
+
+	private LatencyRecorder[][] recorders;
+	/* One of every traceRate stanzas is traced, none if 0 */
+	private volatile int traceRate = 0;
+
+	public static Latencies getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Keeps how long stanzas spend inside the proxy, from the read that
+	 * completed them until their last byte is written, by the direction they
+	 * travel (that of the channel they were read from) and their kind.
+	 *
+	 * The percentiles are also published as gauges of the metrics registry,
+	 * like <i>latency.clientToServer.message.p99</i>.
+	 */
+
+	private Latencies() {
+		recorders = new LatencyRecorder[Direction.values().length][KINDS.length];
+		for (Direction direction : Direction.values()) {
+			for (int kind = 0; kind < KINDS.length; kind++) {
+				LatencyRecorder recorder = new LatencyRecorder();
+				recorders[direction.ordinal()][kind] = recorder;
+				registerGauges("latency." + direction + "." + KINDS[kind],
+						recorder);
+			}
+		}
+		ConfigurationCommands config = ConfigurationCommands.getInstance();
+		if (config.hasProperty("latencyTrace"))
+			propertyChanged("latencyTrace", config.getProperty("latencyTrace"));
+		config.addListener(this);
+	}
+
+	public void propertyChanged(String property, String value) {
+		if (!property.equals("latencyTrace"))
+			return;
+		try {
+			traceRate = Math.max(0, Integer.parseInt(value.trim()));
+		} catch (NumberFormatException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Returns the stamp that follows a stanza on its way to the write queue.
+	 * When tracing, one of every <i>latencyTrace</i> stanzas, at random, has
+	 * its latency logged.
+	 *
+	 * @param direction
+	 * @param stanza
+	 * @param readAt
+	 *            System nanoTime of the read that completed the stanza.
+	 * @param user
+	 *            Client JID, only used when tracing.
+	 */
+
+	public LatencyStamp stamp(Direction direction, Stanza stanza,
+			long readAt, String user) {
+		int kind = stanza.isMessage() ? MESSAGE : stanza.isPresence() ? PRESENCE
+				: OTHER;
+		String trace = null;
+		int rate = traceRate;
+		if (rate > 0 && ThreadLocalRandom.current().nextInt(rate) == 0)
+			trace = direction + " " + KINDS[kind] + " of " + user;
+		return new LatencyStamp(recorders[direction.ordinal()][kind], trace,
+				readAt);
+	}
+
+	/**
+	 * Returns a line per direction and kind of stanza with the amount of
+	 * stanzas recorded since the last reset and their latency percentiles,
+	 * in microseconds.
+	 */
+
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for (Direction direction : Direction.values()) {
+			for (int kind = 0; kind < KINDS.length; kind++) {
+				LatencyRecorder recorder = recorders[direction.ordinal()][kind];
+				sb.append(direction).append(' ').append(KINDS[kind])
+						.append(": count=").append(recorder.getCount())
+						.append(" p50=").append(recorder.getPercentile(0.5))
+						.append("us p99=")
+						.append(recorder.getPercentile(0.99))
+						.append("us p999=")
+						.append(recorder.getPercentile(0.999))
+						.append("us max=").append(recorder.getMax())
+						.append("us\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Forgets every recorded latency, so the next report only covers what
+	 * happens from now on.
+	 */
+
+	public void reset() {
+		for (LatencyRecorder[] byKind : recorders)
+			for (LatencyRecorder recorder : byKind)
+				recorder.reset();
+	}
+
+	private void registerGauges(String name, final LatencyRecorder recorder) {
+		Metrics metrics = Metrics.getInstance();
+		metrics.gauge(name + ".p50", new Gauge() {
+			public long getValue() {
+				return recorder.getPercentile(0.5);
+			}
+		});
+		metrics.gauge(name + ".p99", new Gauge() {
+			public long getValue() {
+				return recorder.getPercentile(0.99);
+			}
+		});
+		metrics.gauge(name + ".p999", new Gauge() {
+			public long getValue() {
+				return recorder.getPercentile(0.999);
+			}
+		});
+		metrics.gauge(name + ".max", new Gauge() {
+			public long getValue() {
+				return recorder.getMax();
+			}
+		});
+	}
+}
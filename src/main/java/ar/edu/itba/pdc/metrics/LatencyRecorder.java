@@ -0,0 +1,104 @@
+package ar.edu.itba.pdc.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyRecorder {
+
+	/* Values below this one get a bucket each */
+	private static final int LINEAR = 64;
+	/* Buckets for every power of two above LINEAR, about 3% apart */
+	private static final int SUB_BUCKETS = 32;
+	private static final int SIZE = LINEAR + 58 * SUB_BUCKETS;
+
+	private AtomicLongArray counts = new AtomicLongArray(SIZE);
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Histogram of latencies, in microseconds, that any thread can record
+	 * into without locking. Like HdrHistogram, buckets are linear up to 64
+	 * and then log-linear, so percentiles are within about 3% of the
+	 * recorded values whatever their range, in a fixed amount of memory.
+	 */
+
+	public LatencyRecorder() {
+	}
+
+	public void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		counts.incrementAndGet(index(micros));
+		long current;
+		while (micros > (current = max.get()))
+			if (max.compareAndSet(current, micros))
+				break;
+	}
+
+	/**
+	 * Returns how many latencies were recorded since the last reset.
+	 */
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < SIZE; i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the latency below which the given fraction of the recorded ones
+	 * are, rounded up to the top of its bucket, or 0 if none was recorded.
+	 *
+	 * @param fraction
+	 *            Between 0 and 1, like 0.99 for the 99th percentile.
+	 */
+
+	public long getPercentile(double fraction) {
+		long[] snapshot = new long[SIZE];
+		long count = 0;
+		for (int i = 0; i < SIZE; i++)
+			count += snapshot[i] = counts.get(i);
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i = 0; i < SIZE; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(max.get(), upperBound(i));
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets every recorded latency. Those recorded while resetting may be
+	 * kept or lost.
+	 */
+
+	public void reset() {
+		for (int i = 0; i < SIZE; i++)
+			counts.set(i, 0);
+		max.set(0);
+	}
+
+	private static int index(long value) {
+		if (value < LINEAR)
+			return (int) value;
+		/* Keeps the 6 most significant bits, the first one is always set */
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+		return LINEAR + (shift - 1) * SUB_BUCKETS
+				+ (int) ((value >> shift) - SUB_BUCKETS);
+	}
+
+	private static long upperBound(int index) {
+		if (index < LINEAR)
+			return index;
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long mantissa = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
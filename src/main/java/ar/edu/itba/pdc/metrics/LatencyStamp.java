@@ -0,0 +1,71 @@
+package ar.edu.itba.pdc.metrics;
+
+import ar.edu.itba.pdc.logger.XMPPLogger;
+
+public class LatencyStamp {
+
+	private final LatencyRecorder recorder;
+	private final String trace;
+	private final long readAt;
+	private long queuedAt;
+	private long end;
+
+	/**
+	 * Follows a stanza from the read that completed it until its last byte is
+	 * written. Created through <i>Latencies.stamp</i>.
+	 *
+	 * @param recorder
+	 *            Where the latency is recorded.
+	 * @param trace
+	 *            Description logged along with the latency, or null if this
+	 *            stanza is not traced.
+	 * @param readAt
+	 *            System nanoTime of the read.
+	 */
+
+	LatencyStamp(LatencyRecorder recorder, String trace, long readAt) {
+		this.recorder = recorder;
+		this.trace = trace;
+		this.readAt = readAt;
+	}
+
+	/**
+	 * Called once the stanza is in the write queue.
+	 *
+	 * @param end
+	 *            Bytes ever queued for the channel, up to the last one of this
+	 *            stanza.
+	 */
+
+	public void queued(long end) {
+		this.queuedAt = System.nanoTime();
+		this.end = end;
+	}
+
+	/**
+	 * Returns the amount of bytes the channel has to have written for this
+	 * stanza to be completely written (see <i>queued</i>).
+	 */
+
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Called once the last byte of the stanza was written.
+	 *
+	 * @param now
+	 *            System nanoTime of the write.
+	 */
+
+	public void written(long now) {
+		long micros = (now - readAt) / 1000;
+		recorder.record(micros);
+		if (trace != null)
+			XMPPLogger.getInstance().info(
+					"Stanza latency " + trace + ": " + micros
+							+ "us (processing " + (queuedAt - readAt) / 1000
+							+ "us, write queue " + (now - queuedAt) / 1000
+							+ "us)");
+	}
+}
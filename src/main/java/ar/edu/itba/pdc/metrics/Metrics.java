@@ -0,0 +1,250 @@
+package ar.edu.itba.pdc.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import ar.edu.itba.pdc.handlers.ClientHandler;
+import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.nio.enumerations.TimeoutType;
+import ar.edu.itba.pdc.proxy.BufferPool;
+import ar.edu.itba.pdc.proxy.ChannelBuffers;
+import ar.edu.itba.pdc.proxy.ProxyConnection;
+import ar.edu.itba.pdc.proxy.enumerations.ConnectionState;
+
+public class Metrics {
+
+	/* Seconds between samples of the counter rates */
+	private static final int SAMPLE_PERIOD = 1;
+	private static final String RATE_SUFFIX = ".perSecond";
+	private static final String OBJECT_NAME = "ar.edu.itba.pdc:type=Metrics";
+
+	private static Metrics instance = new Metrics();
+
+	private ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	public static Metrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Registry of every number the proxy keeps about itself.
+	 *
+	 * Counters are updated by the code they count and only added up when the
+	 * metrics are read. Gauges are read from the objects that already keep
+	 * them, so registering them costs nothing until then. Every second the
+	 * per second rate of each counter is sampled.
+	 */
+
+	private Metrics() {
+		registerProxyGauges();
+		ScheduledExecutorService sampler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "metrics-sampler");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		sampler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				long now = System.nanoTime();
+				for (Counter counter : counters.values())
+					counter.sample(now);
+			}
+		}, SAMPLE_PERIOD, SAMPLE_PERIOD, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Returns the counter with the given name, creating it the first time.
+	 *
+	 * @param name
+	 *            Dotted name, like <i>bytes.client.in</i>.
+	 */
+
+	public Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			Counter created = new Counter();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null)
+				counter = created;
+		}
+		return counter;
+	}
+
+	/**
+	 * Registers a gauge, replacing the one with the same name if any.
+	 *
+	 * @param name
+	 * @param gauge
+	 */
+
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Removes the given counter or gauge, unless its name was registered
+	 * again for another one since.
+	 *
+	 * @param name
+	 * @param metric
+	 */
+
+	public void remove(String name, Object metric) {
+		counters.remove(name, metric);
+		gauges.remove(name, metric);
+	}
+
+	/**
+	 * Registers the size of the worker pool's queue and its busy threads.
+	 *
+	 * @param pool
+	 */
+
+	public void registerWorkers(final ThreadPoolExecutor pool) {
+		gauge("workers.queued", new Gauge() {
+			public long getValue() {
+				return pool.getQueue().size();
+			}
+		});
+		gauge("workers.active", new Gauge() {
+			public long getValue() {
+				return pool.getActiveCount();
+			}
+		});
+	}
+
+	/**
+	 * Returns every metric by name: the counters, their rates (with a
+	 * <i>.perSecond</i> suffix) and the gauges.
+	 */
+
+	public SortedMap<String, Long> snapshot() {
+		SortedMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().get());
+			values.put(entry.getKey() + RATE_SUFFIX, entry.getValue()
+					.getPerSecond());
+		}
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+			values.put(entry.getKey(), entry.getValue().getValue());
+		return values;
+	}
+
+	/**
+	 * Returns the metrics whose name starts with the given prefix, one per
+	 * line as <i>name value</i>.
+	 *
+	 * @param prefix
+	 *            Empty for every metric.
+	 */
+
+	public String report(String prefix) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+			if (entry.getKey().startsWith(prefix))
+				sb.append(entry.getKey()).append(' ')
+						.append(entry.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Publishes the metrics through JMX, as the attributes of the
+	 * <i>ar.edu.itba.pdc:type=Metrics</i> MBean.
+	 */
+
+	public void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new MetricsMBean(this), new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			XMPPLogger.getInstance().warn(
+					"Unable to register the metrics MBean");
+		}
+	}
+
+	/**
+	 * Gauges over the counters other parts of the proxy already keep.
+	 */
+
+	private void registerProxyGauges() {
+		for (final ConnectionState state : ConnectionState.values()) {
+			gauge("connections." + state, new Gauge() {
+				public long getValue() {
+					return ProxyConnection.getConnections(state);
+				}
+			});
+		}
+		for (final TimeoutType type : TimeoutType.values()) {
+			gauge("timeouts." + type, new Gauge() {
+				public long getValue() {
+					return ClientHandler.getExpirations(type);
+				}
+			});
+		}
+		gauge("buffers.congestedChannels", new Gauge() {
+			public long getValue() {
+				return ChannelBuffers.getCongestedChannels();
+			}
+		});
+		gauge("buffers.congestions", new Gauge() {
+			public long getValue() {
+				return ChannelBuffers.getCongestions();
+			}
+		});
+		gauge("buffers.highWatermark", new Gauge() {
+			public long getValue() {
+				return ChannelBuffers.getHighWatermark();
+			}
+		});
+		gauge("buffers.lowWatermark", new Gauge() {
+			public long getValue() {
+				return ChannelBuffers.getLowWatermark();
+			}
+		});
+		gauge("buffers.pendingBytes", new Gauge() {
+			public long getValue() {
+				return ChannelBuffers.getTotalPendingBytes();
+			}
+		});
+		gauge("buffers.queuedCapacity", new Gauge() {
+			public long getValue() {
+				return ChannelBuffers.getTotalQueuedCapacity();
+			}
+		});
+		gauge("pool.hits", new Gauge() {
+			public long getValue() {
+				return BufferPool.getInstance().getHits();
+			}
+		});
+		gauge("pool.misses", new Gauge() {
+			public long getValue() {
+				return BufferPool.getInstance().getMisses();
+			}
+		});
+		gauge("pool.outstanding", new Gauge() {
+			public long getValue() {
+				return BufferPool.getInstance().getOutstanding();
+			}
+		});
+		gauge("log.dropped", new Gauge() {
+			public long getValue() {
+				return XMPPLogger.getInstance().getDroppedEvents();
+			}
+		});
+	}
+}
@@ -0,0 +1,79 @@
+package ar.edu.itba.pdc.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+public class MetricsMBean implements DynamicMBean {
+
+	private Metrics metrics;
+
+	/**
+	 * Read only MBean with one long attribute per metric, named like the
+	 * metric. Attributes are listed again on every call, since metrics can be
+	 * registered at any time.
+	 *
+	 * @param metrics
+	 */
+
+	public MetricsMBean(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		Long value = metrics.snapshot().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Long> values = metrics.snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = values.get(attribute);
+			if (value != null)
+				list.add(new Attribute(attribute, value));
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName()
+				+ " is read only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	/**
+	 * The MBean has no operations.
+	 */
+
+	public Object invoke(String actionName, Object[] params,
+			String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name : metrics.snapshot().keySet())
+			attributes.add(new MBeanAttributeInfo(name, "long", name, true,
+					false, false));
+		return new MBeanInfo(getClass().getName(), "XMPP proxy metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[0], null);
+	}
+}
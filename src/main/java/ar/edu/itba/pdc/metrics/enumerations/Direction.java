@@ -0,0 +1,6 @@
+package ar.edu.itba.pdc.metrics.enumerations;
+
+public enum Direction {
+	clientToServer,
+	serverToClient
+}
@@ -7,54 +7,69 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import ar.edu.itba.pdc.handlers.AdminHandler;
-import ar.edu.itba.pdc.handlers.ClientHandler;
-import ar.edu.itba.pdc.handlers.TCPHandler;
+import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.metrics.Metrics;
+import ar.edu.itba.pdc.nio.enumerations.ListenerType;
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
 
 public class DispatcherHandler {
 	private static final int TIMEOUT = 3000;
 
-	private Map<AbstractSelectableChannel, TCPHandler> handlerMap;
+	private Map<AbstractSelectableChannel, ListenerType> listenerMap;
+	private List<Reactor> reactors;
+	private int nextReactor = 0;
+	private XMPPLogger logger = XMPPLogger.getInstance();
 
 	public DispatcherHandler() {
-		handlerMap = new HashMap<AbstractSelectableChannel, TCPHandler>();
+		listenerMap = new HashMap<AbstractSelectableChannel, ListenerType>();
+		reactors = new ArrayList<Reactor>();
 	}
 
 	/**
-	 * Receives incoming events from open sockets and passes them to the
-	 * available handlers. Should they return a new SocketChannel, it adds it to
-	 * the selector with the default settings (OP_READ).
-	 * 
+	 * Accepts incoming connections on the client and admin ports and hands
+	 * every new SocketChannel to one of the worker reactors (round robin).
+	 * Each reactor owns its own selector, so once a channel is handed over all
+	 * of its reads and writes (and those of the server channel opened for it)
+	 * are served by that reactor's thread.
+	 *
+	 * The amount of reactors is read from the <i>reactors</i> property and
+	 * defaults to the number of available processors.
+	 *
 	 * @throws IOException
 	 */
 
 	public void run() throws IOException {
 		Selector selector = Selector.open();
 
-		/* Create handlers */
-		ClientHandler clientHandler = new ClientHandler(selector);
-		AdminHandler adminHandler = new AdminHandler(selector);
+		/* Start worker reactors */
+		ThreadPoolExecutor threadPool = new ThreadPoolExecutor(10, 10, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		Metrics.getInstance().registerWorkers(threadPool);
+		int reactorCount = getReactorCount();
+		for (int i = 0; i < reactorCount; i++) {
+			Reactor reactor = new Reactor(threadPool, i, reactorCount);
+			reactors.add(reactor);
+			new Thread(reactor, "reactor-" + i).start();
+		}
+		logger.info("Started " + reactorCount + " reactors");
 
 		/* Bind client socket */
-		ServerSocketChannel clientChannel = ServerSocketChannel.open();
-		clientChannel.socket().bind(new InetSocketAddress(5678));
-		clientChannel.configureBlocking(false);
-		clientChannel.register(selector, SelectionKey.OP_ACCEPT);
-		handlerMap.put(clientChannel, clientHandler);
+		bind(selector, 5678, ListenerType.client);
 
 		/* Bind admin socket */
-		ServerSocketChannel adminChannel = ServerSocketChannel.open();
-		adminChannel.socket().bind(new InetSocketAddress(5679));
-		adminChannel.configureBlocking(false);
-		adminChannel.register(selector, SelectionKey.OP_ACCEPT);
-		handlerMap.put(adminChannel, adminHandler);
+		bind(selector, 5679, ListenerType.admin);
 
 		while (!Thread.interrupted()) {
-			if (selector.select(TIMEOUT) == 0) 
+			if (selector.select(TIMEOUT) == 0)
 				continue;
 
 			Iterator<SelectionKey> keyIter = selector.selectedKeys().iterator();
@@ -63,25 +78,49 @@ public class DispatcherHandler {
 				if (key.isAcceptable()) {
 					SocketChannel newChannel = ((ServerSocketChannel) key
 							.channel()).accept();
-					newChannel.configureBlocking(false);
-					newChannel.register(selector, SelectionKey.OP_READ);
-					TCPHandler handler = handlerMap.get(key.channel());
-					handlerMap.put(newChannel, handler);
-					handler.accept(newChannel);
-				}
-
-				if (key.isReadable()) {
-					SocketChannel channel = handlerMap.get(key.channel()).read(
-							key);
-					if (channel != null)
-						handlerMap.put(channel, handlerMap.get(key.channel()));
-				}
-
-				if (key.isValid() && key.isWritable()) {
-					handlerMap.get(key.channel()).write(key);
+					if (newChannel != null) {
+						newChannel.configureBlocking(false);
+						nextReactor().dispatch(newChannel,
+								listenerMap.get(key.channel()));
+					}
 				}
 				keyIter.remove();
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	private void bind(Selector selector, int port, ListenerType type)
+			throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.socket().bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_ACCEPT);
+		listenerMap.put(channel, type);
+	}
+
+	private Reactor nextReactor() {
+		Reactor reactor = reactors.get(nextReactor);
+		nextReactor = (nextReactor + 1) % reactors.size();
+		return reactor;
+	}
+
+	/**
+	 * Returns the amount of worker reactors to start, taken from the
+	 * configuration file or the number of available processors if it is
+	 * missing or invalid.
+	 */
+
+	private int getReactorCount() {
+		String value = ConfigurationCommands.getInstance().getProperty(
+				"reactors");
+		try {
+			int count = Integer.parseInt(value.trim());
+			if (count > 0)
+				return count;
+		} catch (NumberFormatException e) {
+			if (!value.equals(""))
+				logger.warn("Invalid reactors property, using defaults");
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+}
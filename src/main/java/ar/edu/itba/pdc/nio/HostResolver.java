@@ -0,0 +1,220 @@
+package ar.edu.itba.pdc.nio;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.metrics.Counter;
+import ar.edu.itba.pdc.metrics.Gauge;
+import ar.edu.itba.pdc.metrics.Metrics;
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
+
+public class HostResolver {
+
+	/* Default time resolved and unresolvable hosts are kept, in milliseconds */
+	private static final long DEFAULT_TTL = 60000;
+	private static final long DEFAULT_NEGATIVE_TTL = 10000;
+	private static final int THREADS = 2;
+
+	private static final Counter HITS = counter("dns.hits");
+	private static final Counter NEGATIVE_HITS = counter("dns.negativeHits");
+	private static final Counter MISSES = counter("dns.misses");
+	private static final Counter REFRESHES = counter("dns.refreshes");
+	private static final Counter FAILURES = counter("dns.failures");
+
+	private static HostResolver instance = new HostResolver();
+
+	private ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+	private ExecutorService resolvers;
+	private long ttl;
+	private long negativeTtl;
+	private XMPPLogger logger = XMPPLogger.getInstance();
+
+	public static HostResolver getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Cache of the addresses of the servers clients are sent to, so that
+	 * no reactor ever waits for a name lookup.
+	 *
+	 * Lookups run in their own threads. Resolved hosts are kept for
+	 * <i>dnsTtl</i> milliseconds and hosts that could not be resolved for
+	 * <i>dnsNegativeTtl</i>. Once that time is over the cached answer is
+	 * still given while it is looked up again, except for unresolvable
+	 * hosts, which are given another chance right away.
+	 */
+
+	private HostResolver() {
+		ttl = getTtl("dnsTtl", DEFAULT_TTL);
+		negativeTtl = getTtl("dnsNegativeTtl", DEFAULT_NEGATIVE_TTL);
+		resolvers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "dns-resolver-"
+						+ count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		Metrics.getInstance().gauge("dns.entries", new Gauge() {
+			public long getValue() {
+				return cache.size();
+			}
+		});
+	}
+
+	/**
+	 * Gives the address of the given host to the listener. If it is cached,
+	 * the listener is called right away by the calling thread; otherwise it
+	 * is called by a resolver thread once the lookup is done. Concurrent
+	 * requests for the same host share a single lookup.
+	 *
+	 * @param host
+	 * @param listener
+	 */
+
+	public void resolve(String host, ResolveListener listener) {
+		if (host == null || host.isEmpty()) {
+			listener.failed();
+			return;
+		}
+		Entry entry = entry(host);
+		InetAddress address;
+		synchronized (entry) {
+			long now = System.currentTimeMillis();
+			boolean expired = now >= entry.expiresAt;
+			if (entry.resolved && (!expired || entry.address != null)) {
+				if (expired)
+					refresh(entry);
+				address = entry.address;
+			} else {
+				MISSES.increment();
+				entry.waiting.add(listener);
+				lookup(entry);
+				return;
+			}
+		}
+		if (address != null) {
+			HITS.increment();
+			listener.resolved(address);
+		} else {
+			NEGATIVE_HITS.increment();
+			listener.failed();
+		}
+	}
+
+	/**
+	 * Starts looking the given host up unless it is already cached, so the
+	 * first client sent to it does not wait.
+	 *
+	 * @param host
+	 */
+
+	public void prefetch(String host) {
+		if (host == null || host.isEmpty())
+			return;
+		Entry entry = entry(host);
+		synchronized (entry) {
+			if (!entry.resolved)
+				lookup(entry);
+		}
+	}
+
+	private Entry entry(String host) {
+		Entry entry = cache.get(host);
+		if (entry == null) {
+			Entry created = new Entry(host);
+			entry = cache.putIfAbsent(host, created);
+			if (entry == null)
+				entry = created;
+		}
+		return entry;
+	}
+
+	private void refresh(Entry entry) {
+		if (!entry.inFlight)
+			REFRESHES.increment();
+		lookup(entry);
+	}
+
+	/**
+	 * Looks the host of the entry up in a resolver thread, unless that is
+	 * already being done. Must be called holding the entry's lock.
+	 */
+
+	private void lookup(final Entry entry) {
+		if (entry.inFlight)
+			return;
+		entry.inFlight = true;
+		resolvers.execute(new Runnable() {
+			public void run() {
+				InetAddress address = null;
+				try {
+					address = InetAddress.getByName(entry.host);
+				} catch (UnknownHostException e) {
+					FAILURES.increment();
+					logger.warn("Unable to resolve " + entry.host);
+				}
+				List<ResolveListener> waiting;
+				synchronized (entry) {
+					entry.address = address;
+					entry.resolved = true;
+					entry.expiresAt = System.currentTimeMillis()
+							+ ((address != null) ? ttl : negativeTtl);
+					entry.inFlight = false;
+					waiting = entry.waiting;
+					entry.waiting = new ArrayList<ResolveListener>();
+				}
+				for (ResolveListener listener : waiting) {
+					if (address != null)
+						listener.resolved(address);
+					else
+						listener.failed();
+				}
+			}
+		});
+	}
+
+	private long getTtl(String property, long defaultValue) {
+		String value = ConfigurationCommands.getInstance().getProperty(
+				property);
+		try {
+			long ttl = Long.parseLong(value.trim());
+			return (ttl >= 0) ? ttl : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static Counter counter(String name) {
+		return Metrics.getInstance().counter(name);
+	}
+
+	/**
+	 * Cached answer for a host, guarded by its own lock.
+	 */
+
+	private static class Entry {
+
+		final String host;
+		InetAddress address;
+		boolean resolved = false;
+		boolean inFlight = false;
+		long expiresAt = 0;
+		List<ResolveListener> waiting = new ArrayList<ResolveListener>();
+
+		Entry(String host) {
+			this.host = host;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package ar.edu.itba.pdc.nio;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ar.edu.itba.pdc.logger.XMPPLogger;
+
+public class InterestOpsQueue {
+
+	private Selector selector;
+	private Queue<Runnable> updates;
+	private AtomicBoolean wakeupPending;
+	private volatile Thread reactorThread;
+	private XMPPLogger logger = XMPPLogger.getInstance();
+
+	/**
+	 * Creates the queue through which every thread asks a reactor to change
+	 * the operations its selector waits for.
+	 *
+	 * Only the reactor thread touches the selection keys, so worker threads
+	 * never contend with select() for the selector's locks, and however many
+	 * updates are posted while the reactor is busy, it is woken up only once.
+	 *
+	 * @param selector
+	 *            The reactor's selector.
+	 */
+
+	public InterestOpsQueue(Selector selector) {
+		this.selector = selector;
+		this.updates = new ConcurrentLinkedQueue<Runnable>();
+		this.wakeupPending = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Sets the thread that owns the selector. Updates made from it are
+	 * applied right away.
+	 *
+	 * @param thread
+	 */
+
+	public void setReactorThread(Thread thread) {
+		this.reactorThread = thread;
+	}
+
+	/**
+	 * Sets the operations the selector waits for on the given channel. From
+	 * any thread other than the reactor the update is queued.
+	 *
+	 * @param channel
+	 * @param ops
+	 */
+
+	public void update(SocketChannel channel, int ops) {
+		if (isReactorThread())
+			apply(channel, ops);
+		else
+			post(new Update(channel, ops));
+	}
+
+	/**
+	 * Queues an update that works out the operations itself once the reactor
+	 * runs it, from the state the channels are in at that moment rather than
+	 * when it was posted.
+	 *
+	 * @param update
+	 *            Run by the reactor thread, which may call <i>update</i>.
+	 */
+
+	public void post(Runnable update) {
+		updates.add(update);
+		wakeup();
+	}
+
+	public boolean isReactorThread() {
+		return Thread.currentThread() == reactorThread;
+	}
+
+	/**
+	 * Wakes the reactor up, unless it was already woken up and did not drain
+	 * the queue yet.
+	 */
+
+	public void wakeup() {
+		if (wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	/**
+	 * Applies every queued update, in the order they were posted. Must only
+	 * be called by the reactor thread, before selecting.
+	 */
+
+	public void drain() {
+		wakeupPending.set(false);
+		Runnable update;
+		while ((update = updates.poll()) != null) {
+			try {
+				update.run();
+			} catch (RuntimeException e) {
+				logger.error("Unexpected error applying a reactor update", e);
+			}
+		}
+	}
+
+	private void apply(SocketChannel channel, int ops) {
+		SelectionKey key = channel.keyFor(selector);
+		try {
+			if (key != null)
+				key.interestOps(ops);
+			else if (channel.isOpen())
+				channel.register(selector, ops);
+		} catch (CancelledKeyException e) {
+			return;
+		} catch (ClosedChannelException e) {
+			logger.warn("Unable to register closed channel");
+		}
+	}
+
+	private class Update implements Runnable {
+
+		private final SocketChannel channel;
+		private final int ops;
+
+		Update(SocketChannel channel, int ops) {
+			this.channel = channel;
+			this.ops = ops;
+		}
+
+		public void run() {
+			apply(channel, ops);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package ar.edu.itba.pdc.nio;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import ar.edu.itba.pdc.handlers.AdminHandler;
+import ar.edu.itba.pdc.handlers.ClientHandler;
+import ar.edu.itba.pdc.handlers.TCPHandler;
+import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.metrics.Counter;
+import ar.edu.itba.pdc.metrics.Metrics;
+import ar.edu.itba.pdc.nio.enumerations.ListenerType;
+
+public class Reactor implements Runnable {
+	private static final int TIMEOUT = 3000;
+	/* Resolution of the connection deadlines */
+	private static final int TICK = 100;
+	private static final int WHEEL_SIZE = 1024;
+	/* Iterations of every reactor's loop */
+	private static final Counter LOOPS = Metrics.getInstance().counter(
+			"reactor.loops");
+
+	private Selector selector;
+	private Map<ListenerType, TCPHandler> handlers;
+	private ClientHandler clientHandler;
+	private Queue<Runnable> tasks;
+	private TimingWheel wheel;
+	private InterestOpsQueue interestOps;
+	private XMPPLogger logger = XMPPLogger.getInstance();
+
+	/**
+	 * Creates a worker event loop with its own selector and its own set of
+	 * handlers, so every channel registered here (including the server leg
+	 * opened by the ClientHandler) is served by this loop only. Every
+	 * selection key has the handler of its channel attached.
+	 *
+	 * @param threadPool
+	 *            Pool shared by every reactor to process what was read.
+	 * @param index
+	 *            Position of the reactor among every reactor, from 0.
+	 * @param count
+	 *            Amount of reactors.
+	 * @throws IOException
+	 */
+
+	public Reactor(ExecutorService threadPool, int index, int count)
+			throws IOException {
+		selector = Selector.open();
+		handlers = new HashMap<ListenerType, TCPHandler>();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		wheel = new TimingWheel(TICK, WHEEL_SIZE);
+		interestOps = new InterestOpsQueue(selector);
+		clientHandler = new ClientHandler(selector, interestOps, threadPool,
+				wheel, index, count);
+		handlers.put(ListenerType.client, clientHandler);
+		handlers.put(ListenerType.admin, new AdminHandler(selector,
+				interestOps));
+	}
+
+	/**
+	 * Hands a freshly accepted channel over to this reactor. The channel is
+	 * registered by the reactor thread itself, as registering from another
+	 * thread would block while the selector is inside select().
+	 *
+	 * @param channel
+	 * @param type
+	 */
+
+	public void dispatch(final SocketChannel channel, final ListenerType type) {
+		tasks.add(new Runnable() {
+			public void run() {
+				TCPHandler handler = handlers.get(type);
+				try {
+					channel.register(selector, SelectionKey.OP_READ, handler);
+					handler.accept(channel);
+				} catch (IOException e) {
+					logger.error("Unable to register accepted channel");
+					close(channel);
+				}
+			}
+		});
+		interestOps.wakeup();
+	}
+
+	/**
+	 * Receives incoming events from the channels owned by this reactor and
+	 * passes them to their handlers.
+	 */
+
+	public void run() {
+		interestOps.setReactorThread(Thread.currentThread());
+		while (!Thread.interrupted()) {
+			LOOPS.increment();
+			interestOps.drain();
+			runPendingTasks();
+			wheel.advance(System.currentTimeMillis());
+			try {
+				if (selector.select(wheel.isEmpty() ? TIMEOUT : TICK) == 0)
+					continue;
+			} catch (IOException e) {
+				logger.error("Reactor selector failed, stopping reactor");
+				return;
+			}
+
+			Iterator<SelectionKey> keyIter = selector.selectedKeys().iterator();
+			while (keyIter.hasNext()) {
+				SelectionKey key = keyIter.next();
+				keyIter.remove();
+				try {
+					handleKey(key);
+				} catch (IOException e) {
+					logger.error("IO error on channel, closing it");
+					closeKey(key);
+				} catch (RuntimeException e) {
+					/* Otherwise the reactor would stop serving every channel */
+					logger.error("Unexpected error handling channel, closing it",
+							e);
+					closeKey(key);
+				}
+			}
+		}
+	}
+
+	private void handleKey(SelectionKey key) throws IOException {
+		TCPHandler handler = (TCPHandler) key.attachment();
+		if (handler == null)
+			return;
+
+		if (key.isValid() && key.isConnectable()) {
+			handler.connect(key);
+		}
+
+		if (key.isValid() && key.isReadable()) {
+			handler.read(key);
+		}
+
+		if (key.isValid() && key.isWritable()) {
+			handler.write(key);
+		}
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.error("Unexpected error registering channel", e);
+			}
+		}
+	}
+
+	/**
+	 * Closes the channel of a key whose handler failed, along with any other
+	 * channel the handler pairs it with.
+	 */
+
+	private void closeKey(SelectionKey key) {
+		TCPHandler handler = (TCPHandler) key.attachment();
+		try {
+			if (handler != null)
+				handler.close(key);
+		} catch (RuntimeException e) {
+			logger.error("Unable to close failed channel", e);
+		}
+		key.cancel();
+		close(key.channel());
+	}
+
+	private void close(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Unable to close channel");
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package ar.edu.itba.pdc.nio;
+
+import java.net.InetAddress;
+
+public interface ResolveListener {
+
+	public void resolved(InetAddress address);
+
+	public void failed();
+}
@@ -0,0 +1,11 @@
+package ar.edu.itba.pdc.nio;
+
+public interface TimeoutListener {
+
+	/**
+	 * Called by the thread that drives the timing wheel once the timeout is
+	 * due, unless it was cancelled before.
+	 */
+
+	public void expired(TimingWheel.Timeout timeout);
+}
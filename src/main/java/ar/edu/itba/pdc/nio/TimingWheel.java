@@ -0,0 +1,146 @@
+package ar.edu.itba.pdc.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ar.edu.itba.pdc.logger.XMPPLogger;
+
+public class TimingWheel {
+
+	private final long tickDuration;
+	private final int mask;
+	private final Timeout[] buckets;
+	private long currentTick = 0;
+	private long lastTickTime;
+	private int size = 0;
+	private List<Timeout> expired = new ArrayList<Timeout>();
+	private XMPPLogger logger = XMPPLogger.getInstance();
+
+	/**
+	 * Creates a hashed timing wheel. Timeouts are kept in the bucket of the
+	 * tick they are due in, so scheduling and cancelling take constant time
+	 * no matter how many timeouts there are, and each tick only looks at a
+	 * single bucket.
+	 *
+	 * It is not thread safe: it has to be scheduled on and advanced by the
+	 * same thread, its reactor. Timeouts can be cancelled from any thread.
+	 *
+	 * @param tickDuration
+	 *            Resolution of the wheel, in milliseconds.
+	 * @param wheelSize
+	 *            Amount of buckets, rounded up to the next power of two.
+	 *            Timeouts further than a whole turn wait for more turns.
+	 */
+
+	public TimingWheel(long tickDuration, int wheelSize) {
+		int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+		this.tickDuration = tickDuration;
+		this.mask = size - 1;
+		this.buckets = new Timeout[size];
+		this.lastTickTime = System.currentTimeMillis();
+	}
+
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Schedules the listener to be told once the given delay has passed. It
+	 * may be told up to a tick later.
+	 *
+	 * @param listener
+	 * @param delay
+	 *            In milliseconds.
+	 * @return the timeout, which can be used to cancel it.
+	 */
+
+	public Timeout schedule(TimeoutListener listener, long delay) {
+		long elapsed = System.currentTimeMillis() - lastTickTime;
+		long ticks = Math.max(1, (delay + elapsed + tickDuration - 1)
+				/ tickDuration);
+		Timeout timeout = new Timeout(listener);
+		timeout.rounds = (ticks - 1) / buckets.length;
+		int bucket = (int) ((currentTick + ticks) & mask);
+		timeout.next = buckets[bucket];
+		buckets[bucket] = timeout;
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Moves the wheel forward, one bucket per tick elapsed up to the given
+	 * time, and tells the listeners of every timeout that became due.
+	 * Cancelled timeouts are dropped when their bucket comes up.
+	 *
+	 * @param now
+	 */
+
+	public void advance(long now) {
+		while (now - lastTickTime >= tickDuration) {
+			lastTickTime += tickDuration;
+			currentTick++;
+			expireBucket((int) (currentTick & mask));
+		}
+		for (int i = 0; i < expired.size(); i++) {
+			Timeout timeout = expired.get(i);
+			if (timeout.cancelled)
+				continue;
+			try {
+				timeout.listener.expired(timeout);
+			} catch (RuntimeException e) {
+				logger.error("Unexpected error handling a timeout", e);
+			}
+		}
+		expired.clear();
+	}
+
+	private void expireBucket(int bucket) {
+		Timeout prev = null;
+		Timeout timeout = buckets[bucket];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.cancelled || timeout.rounds == 0) {
+				if (prev == null)
+					buckets[bucket] = next;
+				else
+					prev.next = next;
+				timeout.next = null;
+				size--;
+				if (!timeout.cancelled)
+					expired.add(timeout);
+			} else {
+				timeout.rounds--;
+				prev = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	public static class Timeout {
+
+		private final TimeoutListener listener;
+		private long rounds;
+		private Timeout next;
+		private volatile boolean cancelled = false;
+
+		private Timeout(TimeoutListener listener) {
+			this.listener = listener;
+		}
+
+		/**
+		 * Makes sure the listener is not told, if it was not told yet.
+		 */
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+}
@@ -2,11 +2,18 @@ package ar.edu.itba.pdc.nio;
 
 import java.io.IOException;
 
+import ar.edu.itba.pdc.filters.Multiplexing;
 import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.metrics.Metrics;
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
 
 public class XMPPProxy {  
 	
     public static void main(String[] args) {
+        XMPPLogger.getInstance().configure(ConfigurationCommands.getInstance());
+        Metrics.getInstance().registerMBean();
+        /* Starts resolving the servers before the first client logs in */
+        Multiplexing.getInstance();
         DispatcherHandler dh = new DispatcherHandler();
         try {
 			dh.run();
@@ -0,0 +1,6 @@
+package ar.edu.itba.pdc.nio.enumerations;
+
+public enum ListenerType {
+	client,
+	admin
+}
@@ -0,0 +1,8 @@
+package ar.edu.itba.pdc.nio.enumerations;
+
+public enum TimeoutType {
+	connect,
+	handshake,
+	idle,
+	writeStall
+}
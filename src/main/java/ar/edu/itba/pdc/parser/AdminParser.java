@@ -1,7 +1,7 @@
 package ar.edu.itba.pdc.parser;
 
-import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import ar.edu.itba.pdc.exceptions.BadSyntaxException;
@@ -10,14 +10,15 @@ import ar.edu.itba.pdc.parser.executors.AuthService;
 import ar.edu.itba.pdc.parser.executors.BooleanCommandExecutor;
 import ar.edu.itba.pdc.parser.executors.CommandExecutor;
 import ar.edu.itba.pdc.parser.executors.GetCommandExecutor;
+import ar.edu.itba.pdc.parser.executors.LatencyCommandExecutor;
+import ar.edu.itba.pdc.parser.executors.LogLevelCommandExecutor;
 import ar.edu.itba.pdc.parser.executors.RemoveFromListCommandExecutor;
+import ar.edu.itba.pdc.parser.executors.TransformationRulesCommandExecutor;
 import ar.edu.itba.pdc.parser.executors.ValueCommandExecutor;
-import ar.edu.itba.pdc.utils.ConfigurationCommands;
 
 public class AdminParser {
 
 	private Map<String, CommandExecutor> commandTypes = new HashMap<String, CommandExecutor>();
-	private ConfigurationCommands commandManager;
 
 	/**
 	 * Creates the AdminParser and set the command names with their appropriate
@@ -25,38 +26,44 @@ public class AdminParser {
 	 */
 
 	public AdminParser() {
-		commandManager = ConfigurationCommands.getInstance();
 		commandTypes.put("silenceuser", AddToListCommandExecutor.getInstance());
 		commandTypes.put("statistics", BooleanCommandExecutor.getInstance());
 		commandTypes.put("monitor", GetCommandExecutor.getInstance());
 		commandTypes.put("getStatistics", GetCommandExecutor.getInstance());
+		commandTypes.put("metrics", GetCommandExecutor.getInstance());
+		commandTypes.put("latency", LatencyCommandExecutor.getInstance());
+		commandTypes.put("latencyTrace", ValueCommandExecutor.getInstance());
 		commandTypes
 				.put("transformation", BooleanCommandExecutor.getInstance());
+		commandTypes.put("transformationRules",
+				TransformationRulesCommandExecutor.getInstance());
 		commandTypes.put("unsilenceuser",
 				RemoveFromListCommandExecutor.getInstance());
 		commandTypes.put("auth", AuthService.getInstance());
 		commandTypes.put("changePassword", AuthService.getInstance());
 		commandTypes.put("interval", ValueCommandExecutor.getInstance());
 		commandTypes.put("byteUnit", ValueCommandExecutor.getInstance());
+		commandTypes.put("logLevel", LogLevelCommandExecutor.getInstance());
+		commandTypes.put("asyncLogging", BooleanCommandExecutor.getInstance());
 	}
 
 	/**
-	 * Parses a command from the read buffer and validates that it is a valid
-	 * sentence inside our defined protocol.
+	 * Parses a command line and validates that it is a valid sentence inside
+	 * our defined protocol. A line holds one or more commands separated by
+	 * semicolons.
 	 * 
-	 * @param readBuffer
-	 * @param bytesRead
-	 * @return
+	 * @param line
+	 *            Without its line terminator.
+	 * @return The commands and their values, in the order they were given,
+	 *         or null if the line has nothing to do.
 	 * @throws BadSyntaxException
 	 */
 
-	public String parseCommand(ByteBuffer readBuffer, int bytesRead)
+	public Map<String, String> parseCommand(String line)
 			throws BadSyntaxException {
 
-		String fullCommand = new String(readBuffer.array()).substring(0,
-				bytesRead);
-		Map<String, String> commands = new HashMap<String, String>();
-		for (String s : fullCommand.split(";")) {
+		Map<String, String> commands = new LinkedHashMap<String, String>();
+		for (String s : line.split(";")) {
 
 			String[] aux = s.split("=");
 			String trimmed = aux[0].trim();
@@ -72,7 +79,18 @@ public class AdminParser {
 				throw new BadSyntaxException();
 		}
 
-		return takeActions(commands);
+		return commands;
+	}
+
+	/**
+	 * Returns true if the given commands only try to log in, the only ones
+	 * an administrator that did not log in yet may give.
+	 * 
+	 * @param commands
+	 */
+
+	public boolean isAuthentication(Map<String, String> commands) {
+		return commands.size() == 1 && commands.containsKey("auth");
 	}
 
 	/**
@@ -84,7 +102,7 @@ public class AdminParser {
 	 * @throws BadSyntaxException
 	 */
 
-	private String takeActions(Map<String, String> commands)
+	public String takeActions(Map<String, String> commands)
 			throws BadSyntaxException {
 
 		String responseToAdmin = null;
@@ -92,11 +110,8 @@ public class AdminParser {
 			responseToAdmin = commandTypes.get(cmd).execute(cmd,
 					commands.get(cmd));
 
-			if (responseToAdmin != null) {
-				commandManager.saveFile();
-			} else {
+			if (responseToAdmin == null)
 				throw new BadSyntaxException();
-			}
 		}
 		return responseToAdmin + '\n';
 	}
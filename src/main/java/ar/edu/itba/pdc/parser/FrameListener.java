@@ -0,0 +1,40 @@
+package ar.edu.itba.pdc.parser;
+
+import java.nio.ByteBuffer;
+
+public interface FrameListener {
+
+	/**
+	 * Receives a complete frame that is not parsed any further: a stanza
+	 * nobody looks into or a stream level item.
+	 */
+
+	public void frame(ByteBuffer frame);
+
+	/**
+	 * Receives a start tag of a deeply parsed stanza. Its attributes are the
+	 * bytes of the buffer between from and to.
+	 */
+
+	public void startElement(String name, ByteBuffer buf, int from, int to);
+
+	/**
+	 * Receives the character data between from and to, inside a deeply parsed
+	 * stanza.
+	 */
+
+	public void characters(ByteBuffer buf, int from, int to);
+
+	/**
+	 * Receives an end tag of a deeply parsed stanza.
+	 */
+
+	public void endElement(String name);
+
+	/**
+	 * Receives the complete bytes of a deeply parsed stanza, once its top
+	 * level element is closed.
+	 */
+
+	public void endStanza(ByteBuffer stanza);
+}
@@ -0,0 +1,264 @@
+package ar.edu.itba.pdc.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Set;
+
+import ar.edu.itba.pdc.parser.enumerations.TokenizerState;
+
+public class StanzaFramer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String STREAM = "stream:stream";
+
+	/* Top level element names whose contents are reported to the listener */
+	private Set<String> deepParsed;
+
+	private TokenizerState state;
+
+	/* Offsets into the read buffer, kept between calls */
+	private int position, textStart, tagStart, frameStart;
+	private int depth;
+	private byte quote;
+
+	/* True while inside a frame whose contents are reported */
+	private boolean deep;
+
+	/* Bytes belonging to returned frames, dropped by compact */
+	private int consumed;
+
+	/**
+	 * Creates a framer for a single channel. It has to be fed with the same
+	 * read buffer on every call, since it keeps offsets into it.
+	 *
+	 * @param deepParsed
+	 *            Names of the stanzas whose tags and text are reported to the
+	 *            listener. Any other stanza is reported as an opaque frame.
+	 */
+
+	public StanzaFramer(Set<String> deepParsed) {
+		this.deepParsed = deepParsed;
+		this.state = TokenizerState.text;
+	}
+
+	/**
+	 * Scans the bytes appended to the read buffer since the last call,
+	 * resuming from where the previous call stopped.
+	 *
+	 * Only element depth is tracked on the raw bytes, to find where each top
+	 * level stanza starts and ends. Stanzas named in deepParsed have their
+	 * tags and text reported to the listener as they complete; every other
+	 * stanza, as well as the stream level items (the stream opening and
+	 * closing tags, processing instructions and whitespace between stanzas),
+	 * is reported as a single opaque frame.
+	 *
+	 * Reported frames point into the read buffer, and stay valid until
+	 * <i>compact</i> is called.
+	 *
+	 * @param readBuffer
+	 * @param listener
+	 */
+
+	public void frame(ByteBuffer readBuffer, FrameListener listener) {
+		int limit = readBuffer.position();
+
+		while (position < limit) {
+			byte b = readBuffer.get(position++);
+			switch (state) {
+				case text :
+					if (b == '<') {
+						tagStart = position - 1;
+						state = TokenizerState.tagOpening;
+					}
+					break;
+				case tagOpening :
+					if (b == '!') {
+						state = TokenizerState.markup;
+					} else {
+						flushText(readBuffer, listener);
+						state = (b == '?') ? TokenizerState.processingInstruction
+								: TokenizerState.tag;
+					}
+					break;
+				case markup :
+					/* CDATA sections are part of the surrounding text */
+					if (b == '[') {
+						state = TokenizerState.cdata;
+					} else {
+						flushText(readBuffer, listener);
+						state = (b == '-') ? TokenizerState.comment
+								: TokenizerState.tag;
+					}
+					break;
+				case comment :
+					if (closes(readBuffer, '-', '-', tagStart + 4))
+						completeMarkup(readBuffer, listener);
+					break;
+				case cdata :
+					if (closes(readBuffer, ']', ']', tagStart + 9))
+						state = TokenizerState.text;
+					break;
+				case processingInstruction :
+					if (b == '>' && position - 2 >= tagStart + 2
+							&& readBuffer.get(position - 2) == '?')
+						completeMarkup(readBuffer, listener);
+					break;
+				case tag :
+					if (quote != 0) {
+						if (b == quote)
+							quote = 0;
+					} else if (b == '\'' || b == '"') {
+						quote = b;
+					} else if (b == '>') {
+						completeTag(readBuffer, listener);
+						state = TokenizerState.text;
+						textStart = position;
+					}
+					break;
+			}
+		}
+
+		/* Whitespace keepalives between stanzas go through right away */
+		if (state == TokenizerState.text && depth == 0 && limit > textStart) {
+			listener.frame(slice(readBuffer, textStart, limit));
+			textStart = limit;
+			consumed = limit;
+		}
+	}
+
+	/**
+	 * Drops the bytes of the reported frames from the read buffer, moving the
+	 * incomplete frame to its beginning and rebasing every offset. The
+	 * reported frames are no longer valid after this call.
+	 *
+	 * @param readBuffer
+	 */
+
+	public void compact(ByteBuffer readBuffer) {
+		if (consumed == 0)
+			return;
+		readBuffer.limit(readBuffer.position());
+		readBuffer.position(consumed);
+		readBuffer.compact();
+		position -= consumed;
+		textStart -= consumed;
+		tagStart -= consumed;
+		frameStart -= consumed;
+		consumed = 0;
+	}
+
+	/**
+	 * Reports the text found before the current tag. Text between stanzas is
+	 * a frame of its own, text inside a stanza is only reported if the stanza
+	 * is deeply parsed.
+	 */
+
+	private void flushText(ByteBuffer buf, FrameListener listener) {
+		if (tagStart <= textStart)
+			return;
+		if (depth == 0) {
+			listener.frame(slice(buf, textStart, tagStart));
+			consumed = tagStart;
+		} else if (deep) {
+			listener.characters(buf, textStart, tagStart);
+		}
+	}
+
+	/**
+	 * Handles a complete comment or processing instruction. Inside a stanza
+	 * they are just kept as part of its bytes.
+	 */
+
+	private void completeMarkup(ByteBuffer buf, FrameListener listener) {
+		if (depth == 0) {
+			listener.frame(slice(buf, tagStart, position));
+			consumed = position;
+		}
+		state = TokenizerState.text;
+		textStart = position;
+	}
+
+	/**
+	 * Handles a complete start, end or empty element tag, which spans from
+	 * tagStart to the current position. Element names are only decoded for
+	 * top level elements and inside deeply parsed stanzas.
+	 */
+
+	private void completeTag(ByteBuffer buf, FrameListener listener) {
+		boolean closing = buf.get(tagStart + 1) == '/';
+		boolean empty = !closing && buf.get(position - 2) == '/';
+		int nameStart = closing ? tagStart + 2 : tagStart + 1;
+		int nameEnd = nameStart;
+		while (nameEnd < position - 1 && !isDelimiter(buf.get(nameEnd)))
+			nameEnd++;
+		String name = null;
+
+		if (depth == 0) {
+			name = decode(buf, nameStart, nameEnd);
+			if (closing || name.equals(STREAM)) {
+				listener.frame(slice(buf, tagStart, position));
+				consumed = position;
+				return;
+			}
+			frameStart = tagStart;
+			deep = deepParsed.contains(name);
+		} else if (deep) {
+			name = decode(buf, nameStart, nameEnd);
+		}
+
+		if (!closing) {
+			if (deep)
+				listener.startElement(name, buf, nameEnd, empty ? position - 2
+						: position - 1);
+			depth++;
+		}
+		if (closing || empty) {
+			depth--;
+			if (deep)
+				listener.endElement(name);
+			if (depth == 0) {
+				if (deep)
+					listener.endStanza(slice(buf, frameStart, position));
+				else
+					listener.frame(slice(buf, frameStart, position));
+				consumed = position;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the byte just scanned is a '>' preceded by the two given
+	 * characters, not overlapping the opening of the markup (which ends right
+	 * before min).
+	 */
+
+	private boolean closes(ByteBuffer buf, char first, char second, int min) {
+		return buf.get(position - 1) == '>' && position - 3 >= min
+				&& buf.get(position - 3) == first
+				&& buf.get(position - 2) == second;
+	}
+
+	private static boolean isDelimiter(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/'
+				|| b == '>';
+	}
+
+	/**
+	 * Returns a view of the bytes of the buffer between from and to.
+	 */
+
+	static ByteBuffer slice(ByteBuffer buf, int from, int to) {
+		ByteBuffer range = buf.duplicate();
+		range.limit(to);
+		range.position(from);
+		return range.slice();
+	}
+
+	/**
+	 * Decodes the bytes of the buffer between from and to as UTF-8.
+	 */
+
+	static String decode(ByteBuffer buf, int from, int to) {
+		return UTF8.decode(slice(buf, from, to)).toString();
+	}
+}
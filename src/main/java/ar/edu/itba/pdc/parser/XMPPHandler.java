@@ -1,10 +1,10 @@
 package ar.edu.itba.pdc.parser;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import ar.edu.itba.pdc.jabber.JabberElement;
@@ -14,25 +14,22 @@ import ar.edu.itba.pdc.parser.enumerations.ParsingState;
 import ar.edu.itba.pdc.stanzas.Stanza;
 
 public class XMPPHandler extends DefaultHandler {
-	
+
 	private List<Stanza> stanzas;
 	private Stanza currentStanza;
 	private int indentCount;
-	
-	private StringBuffer currentXMLElement;
-	
+
 	private ParsingState parsingState = ParsingState.parsingStart;
-	
+
 	public XMPPHandler() {
 		stanzas = new LinkedList<Stanza>();
 		indentCount = 0;
 	}
-	
-	public void startElement(String s, String s1, String elementName, Attributes attributes) throws SAXException {
-		if (indentCount == 1) {
+
+	public void startElement(String s, String s1, String elementName, Attributes attributes) {
+		if (indentCount == 0) {
 			currentStanza = new Stanza();
-			currentXMLElement = new StringBuffer();
-			
+
 			/* Element name parsing */
 			if (elementName.equals("message")) {
 				currentStanza.setElement(JabberElement.createMessage(attributes.getValue("from"), attributes.getValue("to")));
@@ -42,43 +39,36 @@ public class XMPPHandler extends DefaultHandler {
 			} else if (elementName.equals("presence")) {
 				currentStanza.setElement(JabberElement.createPresence(attributes.getValue("from"), attributes.getValue("to")));
 				((Presence)currentStanza.getElement()).setType(attributes.getValue("type"));
-			} 	
-			
-		} else if (indentCount > 0){
-			if (currentStanza.isMessage()) {
-
-				/* Inner element name parsing */
-				if (elementName.equals("body")) {
-					this.parsingState = ParsingState.messageBody;
-				} else if (elementName.equals("delay")) {
-					this.parsingState = ParsingState.presenceDelay;
-				} else if (elementName.equals("active")) {
-					((Message)currentStanza.getElement()).setActiveXmlns(attributes.getValue("xmlns"));
-					this.parsingState = ParsingState.activeState;
-				}
+			}
+
+		} else if (currentStanza.isMessage()) {
+
+			/* Inner element name parsing */
+			if (elementName.equals("body")) {
+				this.parsingState = ParsingState.messageBody;
+			} else if (elementName.equals("delay")) {
+				this.parsingState = ParsingState.presenceDelay;
+			} else if (elementName.equals("active")) {
+				((Message)currentStanza.getElement()).setActiveXmlns(attributes.getValue("xmlns"));
+				this.parsingState = ParsingState.activeState;
 			}
 		}
-		
-		if (indentCount > 0)
-			currentXMLElement.append(generateXMLOpeningTag(elementName, attributes));
-		
-		indentCount++; 
-	}	
-	 
-	public void endElement(String s, String s1, String element) throws SAXException {
-		 indentCount--;
-		 if (indentCount > 0)
-			 currentXMLElement.append(generateXMLClosingTag(element));
-		 if (indentCount == 1) {
-			 currentStanza.complete();
-			 currentStanza.setXMLString(currentXMLElement.toString());
-			 stanzas.add(currentStanza);
-		 }
+
+		indentCount++;
 	}
-	
-	public void characters(char[] ch, int start, int length)
-			throws SAXException {
-		String str = new String(ch).substring(start, start + length);
+
+	public void endElement(String s, String s1, String element) {
+		indentCount--;
+		parsingState = ParsingState.parsingStart;
+	}
+
+	/**
+	 * Receives the decoded character data of the current element. It is
+	 * escaped again when the element is serialized.
+	 */
+
+	public void characters(char[] ch, int start, int length) {
+		String str = new String(ch, start, length);
 		switch(parsingState) {
 			case messageBody:
 				((Message)(currentStanza.getElement())).setMessage(str);
@@ -95,38 +85,48 @@ public class XMPPHandler extends DefaultHandler {
 			default:
 				break;
 		}
-		if (indentCount > 0 && currentXMLElement != null) 
-			currentXMLElement.append(str);
 	}
-	
-	public List<Stanza> getStanzaList() {
-		return stanzas;
+
+	/**
+	 * Completes the current stanza once its top level element was closed.
+	 *
+	 * @param original
+	 *            Bytes of the whole stanza, as read.
+	 */
+
+	public void endStanza(ByteBuffer original) {
+		currentStanza.setOriginalBytes(original);
+		currentStanza.complete();
+		stanzas.add(currentStanza);
+		currentStanza = null;
 	}
-	
-	public boolean hasIncompleteElements() {
-		return currentStanza == null || !currentStanza.isComplete();
+
+	/**
+	 * Adds a stream level item (stream tags, processing instructions or
+	 * whitespace between stanzas) which is sent as is.
+	 *
+	 * @param original
+	 */
+
+	public void passthrough(ByteBuffer original) {
+		Stanza stanza = new Stanza();
+		stanza.setOriginalBytes(original);
+		stanza.complete();
+		stanzas.add(stanza);
+	}
+
+	/**
+	 * Returns the stanzas completed since the last call.
+	 */
+
+	public List<Stanza> getStanzaList() {
+		List<Stanza> completed = stanzas;
+		stanzas = new LinkedList<Stanza>();
+		return completed;
 	}
-	
+
 	public void setState(ParsingState state) {
 		this.parsingState = state;
 	}
-	
-	private StringBuffer generateXMLOpeningTag(String name, Attributes attributes) {
-		StringBuffer sb = new StringBuffer("<");
-		sb.append(name);
-		for (int i = 0; i < attributes.getLength(); i++) {
-			sb.append(" ");
-			sb.append(attributes.getLocalName(i));
-			sb.append("='");
-			sb.append(attributes.getValue(i));
-			sb.append("'");
-		}
-		sb.append(">");
-		return sb;
-	}
-	
-	private StringBuffer generateXMLClosingTag(String name) {
-		return new StringBuffer("</" + name + ">");
-	}
 
 }
@@ -1,125 +1,197 @@
 package ar.edu.itba.pdc.parser;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.helpers.AttributesImpl;
 
-import org.xml.sax.SAXException;
-
-import ar.edu.itba.pdc.exceptions.IncompleteElementsException;
-import ar.edu.itba.pdc.jabber.Message;
 import ar.edu.itba.pdc.stanzas.Stanza;
 
-public class XMPPParser {
+public class XMPPParser implements FrameListener {
+
+	/* The only stanzas the filters look into */
+	private static final Set<String> DEEP_PARSED = new HashSet<String>(
+			Arrays.asList("message", "presence"));
+
+	private StanzaFramer framer;
+	private XMPPHandler handler;
 
 	/**
-	 * Parses an XML element.
-	 * 
-	 * First, adds a root node to it in order to make it XML valid.
-	 * 
-	 * Then, parses the XML returning a list of stanzas and throwing an
-	 * exception in case any stanza turns out to be incomplete
-	 * 
-	 * @param xmlStream
+	 * Creates an incremental parser for a single channel. It has to be fed
+	 * with the same read buffer on every call, since it keeps offsets into it.
+	 */
+
+	public XMPPParser() {
+		this.framer = new StanzaFramer(DEEP_PARSED);
+		this.handler = new XMPPHandler();
+	}
+
+	/**
+	 * Parses the bytes appended to the read buffer since the last call.
+	 *
+	 * The StanzaFramer finds the stanza boundaries resuming from where the
+	 * previous call stopped. Only messages and presences are parsed into
+	 * their Jabber elements, pushing SAX like events to the XMPPHandler; any
+	 * other stanza, as well as the stream level items (the stream opening and
+	 * closing tags, processing instructions and whitespace between stanzas),
+	 * is returned as a raw stanza. Every stanza completed in the process is
+	 * returned exactly once.
+	 *
+	 * Returned stanzas point to their original bytes in the read buffer, which
+	 * stay there until <i>compact</i> is called. Compacting leaves only the
+	 * incomplete stanza, if any, which is never scanned again. If the buffer
+	 * is full after compacting, it has to be expanded before reading into it
+	 * again.
+	 *
+	 * @param readBuffer
 	 * @return
-	 * @throws ParserConfigurationException
-	 * @throws IOException
-	 * @throws IncompleteElementsException
 	 */
 
-	public List<Stanza> parse(ByteBuffer xmlStream)
-			throws ParserConfigurationException, IOException,
-			IncompleteElementsException {
-
-		String xmlString = new String(xmlStream.array());
-		xmlString = xmlString.substring(0, xmlStream.position());
-		List<String> messageBodies = new ArrayList<String>();
-
-		if (xmlString.contains("<stream:")) {
-			Stanza s = new Stanza();
-			s.setXMLString(xmlString);
-			List<Stanza> streamList = new LinkedList<Stanza>();
-			streamList.add(s);
-			return streamList;
-		} else {
-			extractMessageBodies(xmlString, messageBodies);
-			String newString = "<xmpp-proxy>" + xmlString + "</xmpp-proxy>";
-			byte[] xmlBytes = newString.getBytes();
-			InputStream is = new ByteArrayInputStream(xmlBytes);
-			SAXParserFactory factory = SAXParserFactory.newInstance();
-			factory.setNamespaceAware(false);
-			factory.setValidating(false);
-			SAXParser parser;
-			try {
-				parser = factory.newSAXParser();
-				XMPPHandler handler = new XMPPHandler();
-				parser.parse(is, handler);
-				if (handler.hasIncompleteElements()) {
-					throw new IncompleteElementsException();
-				}
-				List<Stanza> lstStanzas = handler.getStanzaList();
-				insertMessageBodies(lstStanzas, messageBodies);
-				return lstStanzas;
-			} catch (SAXException e) {
-				throw new IncompleteElementsException();
-			}
-		}
+	public List<Stanza> parse(ByteBuffer readBuffer) {
+		framer.frame(readBuffer, this);
+		return handler.getStanzaList();
+	}
+
+	/**
+	 * Drops the bytes of the stanzas returned by <i>parse</i> from the read
+	 * buffer. The original bytes of those stanzas are no longer valid after
+	 * this call.
+	 *
+	 * @param readBuffer
+	 */
+
+	public void compact(ByteBuffer readBuffer) {
+		framer.compact(readBuffer);
+	}
+
+	public void frame(ByteBuffer frame) {
+		handler.passthrough(frame);
+	}
+
+	public void startElement(String name, ByteBuffer buf, int from, int to) {
+		handler.startElement(null, null, name,
+				parseAttributes(StanzaFramer.decode(buf, from, to)));
+	}
+
+	public void characters(ByteBuffer buf, int from, int to) {
+		char[] chars = decodeText(StanzaFramer.decode(buf, from, to))
+				.toCharArray();
+		handler.characters(chars, 0, chars.length);
+	}
+
+	public void endElement(String name) {
+		handler.endElement(null, null, name);
+	}
 
+	public void endStanza(ByteBuffer stanza) {
+		handler.endStanza(stanza);
 	}
 
 	/**
-	 * Extracts the bodies from all messages in the stream, storing them in a
-	 * list to set them later, once the whole stream was parsed and the
-	 * structures made.
-	 * 
-	 * @param xmlString
-	 * @param messageBodies
+	 * Parses the attributes of a tag, decoding the entities in their values.
+	 *
+	 * @param attributes
+	 *            Text between the element name and the end of the tag.
 	 * @return
 	 */
 
-	private String extractMessageBodies(String xmlString,
-			List<String> messageBodies) {
-		int position = 0;
-		while (xmlString.indexOf("<message", position) > -1) {
-			int bodyPosition = xmlString.indexOf("<body", position);
-			position = xmlString.indexOf(">", bodyPosition);
-			int bodyEndingPosition = xmlString.indexOf("</body>", bodyPosition);
-			if (bodyPosition > -1 && bodyEndingPosition > -1) {
-				String bodyMessage = xmlString.substring(position + 1,
-						bodyEndingPosition);
-				xmlString = xmlString.substring(0, position + 1)
-						+ xmlString.substring(bodyEndingPosition,
-								xmlString.length());
-				messageBodies.add(bodyMessage);
-			}
+	private static AttributesImpl parseAttributes(String attributes) {
+		AttributesImpl attrs = new AttributesImpl();
+		int i = 0, length = attributes.length();
+		while (i < length) {
+			while (i < length && Character.isWhitespace(attributes.charAt(i)))
+				i++;
+			int nameStart = i;
+			while (i < length && attributes.charAt(i) != '='
+					&& !Character.isWhitespace(attributes.charAt(i)))
+				i++;
+			String name = attributes.substring(nameStart, i);
+			while (i < length && attributes.charAt(i) != '\''
+					&& attributes.charAt(i) != '"')
+				i++;
+			if (i == length || name.length() == 0)
+				break;
+			char quote = attributes.charAt(i++);
+			int valueEnd = attributes.indexOf(quote, i);
+			if (valueEnd == -1)
+				break;
+			String value = decodeEntities(attributes.substring(i, valueEnd));
+			attrs.addAttribute("", name, name, "CDATA", value);
+			i = valueEnd + 1;
 		}
-		return xmlString;
+		return attrs;
 	}
 
 	/**
-	 * Inserts back the message bodies into the marshaled objects.
+	 * Decodes character data: entities are replaced and the contents of CDATA
+	 * sections are taken literally.
 	 * 
-	 * @param lstStanzas
-	 * @param messageBodies
+	 * @param text
+	 * @return
 	 */
 
-	private void insertMessageBodies(List<Stanza> lstStanzas,
-			List<String> messageBodies) {
-		Iterator<String> iter = messageBodies.iterator();
-		for (Stanza s : lstStanzas) {
-			if (s.isMessage()) {
-				if (iter.hasNext())
-					((Message) s.getElement()).setMessage(iter.next());
-			}
+	private static String decodeText(String text) {
+		int cdata = text.indexOf("<![CDATA[");
+		if (cdata == -1)
+			return decodeEntities(text);
+		StringBuilder sb = new StringBuilder(text.length());
+		int i = 0;
+		while (cdata != -1) {
+			int end = text.indexOf("]]>", cdata + 9);
+			if (end == -1)
+				break;
+			sb.append(decodeEntities(text.substring(i, cdata)));
+			sb.append(text, cdata + 9, end);
+			i = end + 3;
+			cdata = text.indexOf("<![CDATA[", i);
+		}
+		sb.append(decodeEntities(text.substring(i)));
+		return sb.toString();
+	}
+
+	private static String decodeEntities(String value) {
+		int amp = value.indexOf('&');
+		if (amp == -1)
+			return value;
+		StringBuilder sb = new StringBuilder(value.length());
+		int i = 0;
+		while (amp != -1) {
+			int semicolon = value.indexOf(';', amp);
+			if (semicolon == -1)
+				break;
+			sb.append(value, i, amp);
+			String entity = value.substring(amp + 1, semicolon);
+			if (entity.equals("lt"))
+				sb.append('<');
+			else if (entity.equals("gt"))
+				sb.append('>');
+			else if (entity.equals("amp"))
+				sb.append('&');
+			else if (entity.equals("quot"))
+				sb.append('"');
+			else if (entity.equals("apos"))
+				sb.append('\'');
+			else if (entity.startsWith("#"))
+				sb.appendCodePoint(decodeCharacterReference(entity));
+			else
+				sb.append('&').append(entity).append(';');
+			i = semicolon + 1;
+			amp = value.indexOf('&', i);
+		}
+		sb.append(value, i, value.length());
+		return sb.toString();
+	}
+
+	private static int decodeCharacterReference(String entity) {
+		try {
+			if (entity.startsWith("#x"))
+				return Integer.parseInt(entity.substring(2), 16);
+			return Integer.parseInt(entity.substring(1));
+		} catch (NumberFormatException e) {
+			return '\uFFFD';
 		}
 	}
 
@@ -0,0 +1,11 @@
+package ar.edu.itba.pdc.parser.enumerations;
+
+public enum TokenizerState {
+	text,
+	tagOpening,
+	markup,
+	tag,
+	comment,
+	cdata,
+	processingInstruction
+}
@@ -1,12 +1,11 @@
 package ar.edu.itba.pdc.parser.executors;
 
 import ar.edu.itba.pdc.filters.StatisticsFilter;
-import ar.edu.itba.pdc.utils.ConfigurationCommands;
+import ar.edu.itba.pdc.metrics.Metrics;
 
 public class GetCommandExecutor extends AbstractCommandExecutor {
 
 	private static GetCommandExecutor instance = null;
-	private ConfigurationCommands commandManager;
 
 	public static GetCommandExecutor getInstance() {
 		if (instance == null)
@@ -15,17 +14,18 @@ public class GetCommandExecutor extends AbstractCommandExecutor {
 	}
 	
 	private GetCommandExecutor() {
-		commandManager = ConfigurationCommands.getInstance();
 	}
 
 	public String execute(String command, String value) {
-		commandManager.saveFile();
 		String ans = null;
 		if (command.equals("getStatistics")) {
 			getLogger().info("Statistics answered to administrator");
 			ans = StatisticsFilter.getInstance().execute();
 		} else if (command.equals("monitor")) {
 			ans = StatisticsFilter.getInstance().executeLatest();
+		} else if (command.equals("metrics")) {
+			/* Optionally only those whose name starts with the value */
+			ans = Metrics.getInstance().report(value);
 		}
 		return ans;
 	}
@@ -0,0 +1,33 @@
+package ar.edu.itba.pdc.parser.executors;
+
+import ar.edu.itba.pdc.metrics.Latencies;
+
+public class LatencyCommandExecutor extends AbstractCommandExecutor {
+
+	private static LatencyCommandExecutor instance = null;
+
+	public static LatencyCommandExecutor getInstance() {
+		if (instance == null)
+			instance = new LatencyCommandExecutor();
+		return instance;
+	}
+
+	private LatencyCommandExecutor() {
+	}
+
+	/**
+	 * Answers the stanza latency percentiles. With the <i>reset</i> value, it
+	 * answers them and starts over.
+	 */
+
+	public String execute(String command, String value) {
+		String ans = Latencies.getInstance().report();
+		if (value.equals("reset")) {
+			Latencies.getInstance().reset();
+			getLogger().info("Stanza latencies reset by administrator");
+		} else if (!value.isEmpty()) {
+			return null;
+		}
+		return ans;
+	}
+}
@@ -0,0 +1,37 @@
+package ar.edu.itba.pdc.parser.executors;
+
+import org.apache.log4j.Level;
+
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
+
+public class LogLevelCommandExecutor extends AbstractCommandExecutor {
+
+	private static LogLevelCommandExecutor instance = null;
+	private ConfigurationCommands commandManager;
+
+	public static LogLevelCommandExecutor getInstance() {
+		if (instance == null)
+			instance = new LogLevelCommandExecutor();
+		return instance;
+	}
+
+	private LogLevelCommandExecutor() {
+		commandManager = ConfigurationCommands.getInstance();
+	}
+
+	/**
+	 * Sets the lowest level that gets logged: <i>debug</i>, <i>info</i>,
+	 * <i>warn</i>, <i>error</i> or <i>off</i>.
+	 */
+
+	public String execute(String command, String value) {
+		Level level = Level.toLevel(value, null);
+		if (level == null) {
+			getLogger().info("Syntax error trying to set property " + command);
+			return null;
+		}
+		getLogger().info("Set property " + command + " with value " + value);
+		commandManager.setProperty(command, level.toString());
+		return "OK";
+	}
+}
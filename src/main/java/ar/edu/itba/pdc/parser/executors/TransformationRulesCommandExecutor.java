@@ -0,0 +1,35 @@
+package ar.edu.itba.pdc.parser.executors;
+
+import ar.edu.itba.pdc.filters.TransformationFilter;
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
+
+public class TransformationRulesCommandExecutor extends AbstractCommandExecutor {
+
+	private static TransformationRulesCommandExecutor instance = null;
+	private ConfigurationCommands commandManager;
+
+	public static TransformationRulesCommandExecutor getInstance() {
+		if (instance == null)
+			instance = new TransformationRulesCommandExecutor();
+		return instance;
+	}
+
+	private TransformationRulesCommandExecutor() {
+		commandManager = ConfigurationCommands.getInstance();
+	}
+
+	/**
+	 * Sets the substitution rules of the transformation filter, given as
+	 * <i>a:4,e:3</i>.
+	 */
+
+	public String execute(String command, String value) {
+		if (!TransformationFilter.getInstance().setRules(value)) {
+			getLogger().info("Syntax error trying to set property " + command);
+			return null;
+		}
+		getLogger().info("Set property " + command + " with value " + value);
+		commandManager.setProperty(command, value);
+		return "OK";
+	}
+}
@@ -1,6 +1,5 @@
 package ar.edu.itba.pdc.parser.executors;
 
-import ar.edu.itba.pdc.filters.StatisticsFilter;
 import ar.edu.itba.pdc.utils.ConfigurationCommands;
 
 public class ValueCommandExecutor extends AbstractCommandExecutor {
@@ -25,11 +24,7 @@ public class ValueCommandExecutor extends AbstractCommandExecutor {
 		if ((newValue = Integer.parseInt(value)) == null)
 			return null;
 		else {
-			commandManager.setProperty(command, value);
-			if (command.equals("interval"))
-				StatisticsFilter.getInstance().setInterval(newValue);
-			if (command.equals("byteUnit"))
-				StatisticsFilter.getInstance().setByteUnit(newValue);
+			commandManager.setProperty(command, String.valueOf(newValue));
 		}
 		return "OK";
 	}
@@ -0,0 +1,132 @@
+package ar.edu.itba.pdc.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferPool {
+
+	/* Size classes go from 4 KB (2^12) to 1 MB (2^20) */
+	private static final int MIN_SHIFT = 12;
+	private static final int MAX_SHIFT = 20;
+	private static final int SIZE_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+	/* Maximum amount of idle memory kept by each size class */
+	private static final int MAX_IDLE_BYTES_PER_CLASS = 64 * 1024 * 1024;
+
+	private static BufferPool instance = new BufferPool();
+
+	private Queue<ByteBuffer>[] idleBuffers;
+	private AtomicInteger[] idleCount;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong outstanding = new AtomicLong();
+
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private BufferPool() {
+		idleBuffers = new Queue[SIZE_CLASSES];
+		idleCount = new AtomicInteger[SIZE_CLASSES];
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			idleBuffers[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			idleCount[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Leases a cleared direct buffer with at least the given capacity. The
+	 * capacity is rounded up to the next power of two size class, reusing an
+	 * idle buffer of that class if there is one.
+	 *
+	 * Requests bigger than the biggest size class are served with an unpooled
+	 * direct buffer of the exact size.
+	 *
+	 * @param size
+	 * @return
+	 */
+
+	public ByteBuffer acquire(int size) {
+		int sizeClass = sizeClassFor(size);
+		outstanding.incrementAndGet();
+		if (sizeClass < 0) {
+			misses.incrementAndGet();
+			return ByteBuffer.allocateDirect(size);
+		}
+		ByteBuffer buffer = idleBuffers[sizeClass].poll();
+		if (buffer == null) {
+			misses.incrementAndGet();
+			return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+		}
+		idleCount[sizeClass].decrementAndGet();
+		hits.incrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a leased buffer to the pool. Buffers that do not belong to a
+	 * size class, or whose size class already holds enough idle memory, are
+	 * left to the garbage collector.
+	 *
+	 * The buffer must not be used by the caller after releasing it.
+	 *
+	 * @param buffer
+	 */
+
+	public void release(ByteBuffer buffer) {
+		if (buffer == null)
+			return;
+		outstanding.decrementAndGet();
+		int capacity = buffer.capacity();
+		if (!buffer.isDirect() || Integer.bitCount(capacity) != 1)
+			return;
+		int sizeClass = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+		if (sizeClass < 0 || sizeClass >= SIZE_CLASSES)
+			return;
+		if (idleCount[sizeClass].incrementAndGet() * capacity > MAX_IDLE_BYTES_PER_CLASS) {
+			idleCount[sizeClass].decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		idleBuffers[sizeClass].add(buffer);
+	}
+
+	/**
+	 * Returns the amount of leases served with an idle pooled buffer.
+	 */
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the amount of leases that needed a new allocation.
+	 */
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the amount of buffers leased and not yet released.
+	 */
+
+	public long getOutstanding() {
+		return outstanding.get();
+	}
+
+	private int sizeClassFor(int size) {
+		if (size <= 1 << MIN_SHIFT)
+			return 0;
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		if (shift > MAX_SHIFT)
+			return -1;
+		return shift - MIN_SHIFT;
+	}
+}
@@ -1,42 +1,92 @@
 package ar.edu.itba.pdc.proxy;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.metrics.Counter;
+import ar.edu.itba.pdc.metrics.LatencyStamp;
+import ar.edu.itba.pdc.metrics.Metrics;
 import ar.edu.itba.pdc.proxy.enumerations.BufferType;
+import ar.edu.itba.pdc.utils.ConfigurationCommands;
 
 public class ChannelBuffers {
 	private static final int BUFFER_SIZE = 4096;
 
+	/* Maximum amount of queued buffers written in a single syscall */
+	private static final int MAX_GATHER = 64;
+
+	/*
+	 * Queued bytes at which the channel is congested and stops being fed, and
+	 * at which it is fed again
+	 */
+	private static final long HIGH_WATERMARK = getWatermark(
+			"writeHighWatermark", 256 * 1024);
+	private static final long LOW_WATERMARK = Math.min(HIGH_WATERMARK / 2,
+			getWatermark("writeLowWatermark", 64 * 1024));
+
+	private static AtomicLong congestedChannels = new AtomicLong();
+	/* Bytes queued and not yet written, and capacity holding them, in every channel */
+	private static AtomicLong totalPendingBytes = new AtomicLong();
+	private static AtomicLong totalQueuedCapacity = new AtomicLong();
+	private static AtomicLong congestions = new AtomicLong();
+	private static final Counter EXPANSIONS = Metrics.getInstance().counter(
+			"buffers.expansions");
+
 	private Map<BufferType, ByteBuffer> buffers;
+	private Queue<ByteBuffer> writeQueue;
+	private ByteBuffer[] gather;
+	private BufferPool pool = BufferPool.getInstance();
+	/* When the oldest queued bytes started waiting, or 0 if none are */
+	private volatile long pendingSince = 0;
+	private AtomicLong pendingBytes = new AtomicLong();
+	/* Capacity of the queued buffers, which is what the queue really holds */
+	private AtomicLong queuedCapacity = new AtomicLong();
+	/* Last buffer of the write queue, while there is room left in it */
+	private ByteBuffer tail = null;
+	private AtomicBoolean congested = new AtomicBoolean(false);
+	/* When the last read into the read buffer happened (System nanoTime) */
+	private volatile long lastReadAt = 0;
+	/* Bytes ever queued and written, to know when a stamped stanza is out */
+	private AtomicLong queuedTotal = new AtomicLong();
+	private long writtenTotal = 0;
+	private Queue<LatencyStamp> stamps = new ConcurrentLinkedQueue<LatencyStamp>();
 
-	public ChannelBuffers() {
-		initializeMap(ByteBuffer.allocate(BUFFER_SIZE),
-				ByteBuffer.allocate(BUFFER_SIZE));
-	}
+	/**
+	 * Leases the read buffer from the BufferPool and creates an empty write
+	 * queue. Both have to be given back with <i>release</i> once the channel
+	 * is closed.
+	 */
 
-	public ChannelBuffers(ByteBuffer readBuffer, ByteBuffer writeBuffer) {
-		initializeMap(readBuffer, writeBuffer);
+	public ChannelBuffers() {
+		initializeMap(pool.acquire(BUFFER_SIZE));
+		writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+		gather = new ByteBuffer[MAX_GATHER];
 	}
 
 	/**
-	 * Puts both read and write buffers into a map with their specific
-	 * BufferTypes
-	 * 
+	 * Puts the read buffer into a map with its specific BufferType
+	 *
 	 * @param readBuffer
-	 * @param writeBuffer
 	 */
 
-	private void initializeMap(ByteBuffer readBuffer, ByteBuffer writeBuffer) {
-		buffers = new HashMap<BufferType, ByteBuffer>();
+	private void initializeMap(ByteBuffer readBuffer) {
+		buffers = new ConcurrentHashMap<BufferType, ByteBuffer>();
 		buffers.put(BufferType.read, readBuffer);
-		buffers.put(BufferType.write, writeBuffer);
 	}
 
 	/**
-	 * Sets one of the two buffers given the BufferType
-	 * 
+	 * Sets the buffer of the given BufferType. Only the read side is backed by
+	 * a single buffer, the write side is a queue (see <i>writeToBuffer</i>).
+	 *
 	 * @param type
 	 * @param buffer
 	 */
@@ -46,8 +96,8 @@ public class ChannelBuffers {
 	}
 
 	/**
-	 * Returns one of the two buffers given the BufferType
-	 * 
+	 * Returns the buffer of the given BufferType, or null for the write side.
+	 *
 	 * @param type
 	 */
 
@@ -58,40 +108,267 @@ public class ChannelBuffers {
 	/**
 	 * Writes the given byte array in one of the buffers depending on which
 	 * BufferType (read or write) is received by parameter.
-	 * 
+	 *
+	 * Bytes written to the write side are copied into the last buffer of the
+	 * write queue if they fit in it, or else into a buffer leased from the
+	 * pool and appended to the queue, so they can be added from any thread
+	 * while the reactor is writing the queue to the channel.
+	 *
 	 * @param type
 	 * @param bytes
 	 */
 
 	public void writeToBuffer(BufferType type, byte[] bytes) {
-		ByteBuffer buf = (type == BufferType.read) ? buffers
-				.get(BufferType.read) : buffers.get(BufferType.write);
-		if (buf.capacity() - buf.remaining() < bytes.length) {
+		if (type == BufferType.write) {
+			writeToBuffer(ByteBuffer.wrap(bytes), null);
+			return;
+		}
+		ByteBuffer buf = buffers.get(type);
+		if (buf == null)
+			return;
+		if (buf.remaining() < bytes.length)
+			buf = growBuffer(type, buf.position() + bytes.length);
+		buf.put(bytes);
+	}
+
+	/**
+	 * Copies the remaining bytes of the given buffer to the write queue, into
+	 * its last buffer if they fit in it or else into one leased from the pool.
+	 * The given buffer is not modified.
+	 *
+	 * @param bytes
+	 */
+
+	public void writeToBuffer(ByteBuffer bytes) {
+		writeToBuffer(bytes, null);
+	}
+
+	/**
+	 * Same as <i>writeToBuffer(bytes)</i>, and the given stamp is told when
+	 * the last of those bytes is written.
+	 *
+	 * @param bytes
+	 * @param stamp
+	 *            May be null.
+	 */
+
+	public synchronized void writeToBuffer(ByteBuffer bytes,
+			LatencyStamp stamp) {
+		if (!append(bytes)) {
+			ByteBuffer buf = pool.acquire(bytes.remaining());
+			buf.put(bytes.duplicate());
 			buf.flip();
-			buf = ByteBuffer.allocate(buf.capacity() + bytes.length).put(buf);
-			if (type == BufferType.read) {
-				setBuffer(BufferType.read, buf);
-			} else {
-				setBuffer(BufferType.write, buf);
+			queue(buf);
+		}
+		queued(bytes.remaining(), stamp);
+	}
+
+	/**
+	 * Appends a flipped buffer leased from the pool to the write queue. The
+	 * queue owns it from now on and releases it once it is written.
+	 *
+	 * @param leased
+	 */
+
+	public void enqueue(ByteBuffer leased) {
+		enqueue(leased, null);
+	}
+
+	/**
+	 * Same as <i>enqueue(leased)</i>, and the given stamp is told when the
+	 * last byte of the buffer is written. If its bytes fit in the last
+	 * queued buffer they are copied there and the buffer is given back to
+	 * the pool right away.
+	 *
+	 * @param leased
+	 * @param stamp
+	 *            May be null.
+	 */
+
+	public synchronized void enqueue(ByteBuffer leased, LatencyStamp stamp) {
+		int length = leased.remaining();
+		if (append(leased))
+			pool.release(leased);
+		else
+			queue(leased);
+		queued(length, stamp);
+	}
+
+	/**
+	 * Copies the given bytes after the ones in the last queued buffer, if
+	 * there is room for them. The given buffer is not modified.
+	 *
+	 * Every buffer leased from the pool is at least 4 KB, so without this
+	 * each small stanza would hold a whole one until it is written.
+	 */
+
+	private boolean append(ByteBuffer bytes) {
+		if (tail == null || tail.capacity() - tail.limit() < bytes.remaining())
+			return false;
+		int position = tail.position();
+		int limit = tail.limit();
+		tail.limit(limit + bytes.remaining());
+		tail.position(limit);
+		tail.put(bytes.duplicate());
+		tail.position(position);
+		return true;
+	}
+
+	private void queue(ByteBuffer buf) {
+		queuedCapacity.addAndGet(buf.capacity());
+		totalQueuedCapacity.addAndGet(buf.capacity());
+		writeQueue.add(buf);
+		tail = (buf.limit() < buf.capacity()) ? buf : null;
+	}
+
+	private void queued(int length, LatencyStamp stamp) {
+		pendingBytes.addAndGet(length);
+		totalPendingBytes.addAndGet(length);
+		long end = queuedTotal.addAndGet(length);
+		if (stamp != null) {
+			stamp.queued(end);
+			stamps.add(stamp);
+		}
+		if (pendingSince == 0)
+			pendingSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns since when the channel has not written any of the queued bytes,
+	 * or 0 if there is nothing queued.
+	 */
+
+	public long getWriteStalledSince() {
+		if (writeQueue.isEmpty())
+			return 0;
+		long since = pendingSince;
+		if (since == 0)
+			pendingSince = since = System.currentTimeMillis();
+		return since;
+	}
+
+	/**
+	 * Writes as much of the write queue as the channel accepts, using a single
+	 * gathering write for up to MAX_GATHER queued buffers. Buffers that were
+	 * completely written are given back to the pool, a partially written one
+	 * stays at the head of the queue with its remaining bytes.
+	 *
+	 * Must only be called by the thread that owns the channel's selector.
+	 *
+	 * @param channel
+	 * @return The amount of bytes written.
+	 * @throws IOException
+	 */
+
+	public synchronized long writeTo(GatheringByteChannel channel)
+			throws IOException {
+		int count = 0;
+		for (ByteBuffer buf : writeQueue) {
+			if (count == MAX_GATHER)
+				break;
+			gather[count++] = buf;
+		}
+		if (count == 0)
+			return 0;
+		try {
+			long written = channel.write(gather, 0, count);
+			if (written > 0) {
+				pendingSince = 0;
+				pendingBytes.addAndGet(-written);
+				totalPendingBytes.addAndGet(-written);
+				writtenTotal += written;
+				completeStamps();
+			}
+			return written;
+		} finally {
+			Arrays.fill(gather, 0, count, null);
+			ByteBuffer head;
+			while ((head = writeQueue.peek()) != null && !head.hasRemaining()) {
+				writeQueue.poll();
+				release(head);
 			}
 		}
-		buf.put(bytes);
 	}
 
 	/**
-	 * Clears the given buffer (read or write)
-	 * 
+	 * Gives a buffer taken out of the write queue back to the pool.
+	 */
+
+	private void release(ByteBuffer queued) {
+		queuedCapacity.addAndGet(-queued.capacity());
+		totalQueuedCapacity.addAndGet(-queued.capacity());
+		if (queued == tail)
+			tail = null;
+		pool.release(queued);
+	}
+
+	/**
+	 * Tells the stamps of the stanzas that were completely written that they
+	 * are out.
+	 */
+
+	private void completeStamps() {
+		LatencyStamp stamp;
+		long now = System.nanoTime();
+		while ((stamp = stamps.peek()) != null
+				&& stamp.getEnd() <= writtenTotal) {
+			stamps.poll();
+			stamp.written(now);
+		}
+	}
+
+	/**
+	 * Records that the read buffer was just read into.
+	 */
+
+	public void markRead() {
+		lastReadAt = System.nanoTime();
+	}
+
+	/**
+	 * Returns when the read buffer was last read into (System nanoTime).
+	 */
+
+	public long getLastReadAt() {
+		return lastReadAt;
+	}
+
+	/**
+	 * Clears the given buffer (read or write). Clearing the write side drops
+	 * every queued buffer.
+	 *
 	 * @param type
 	 */
 
 	public void clearBuffer(BufferType type) {
-		if (buffers.get(type) != null)
-			buffers.get(type).clear();
+		if (type == BufferType.write) {
+			synchronized (this) {
+				ByteBuffer queued;
+				while ((queued = writeQueue.poll()) != null) {
+					pendingBytes.addAndGet(-queued.remaining());
+					totalPendingBytes.addAndGet(-queued.remaining());
+					/* Dropped bytes count as written, their stanzas are gone */
+					writtenTotal += queued.remaining();
+					release(queued);
+				}
+				stamps.clear();
+			}
+			return;
+		}
+		ByteBuffer buf = buffers.get(type);
+		if (buf == null)
+			return;
+		if (buf.capacity() > BUFFER_SIZE) {
+			pool.release(buf);
+			setBuffer(type, pool.acquire(BUFFER_SIZE));
+		} else {
+			buf.clear();
+		}
 	}
 
 	/**
-	 * Compacts the given buffer (read or write)
-	 * 
+	 * Compacts the given buffer
+	 *
 	 * @param type
 	 */
 
@@ -101,8 +378,8 @@ public class ChannelBuffers {
 	}
 
 	/**
-	 * Flips the given buffer (read or write)
-	 * 
+	 * Flips the given buffer
+	 *
 	 * @param type
 	 */
 
@@ -112,46 +389,182 @@ public class ChannelBuffers {
 	}
 
 	/**
-	 * Returns the buffer array of the given buffer (read or write)
-	 * 
+	 * Returns a copy of the bytes written so far in the given buffer
+	 *
 	 * @param type
 	 */
 
-	public byte[] getBufferArray(BufferType type) {
-		if (buffers.get(type) != null)
-			return buffers.get(type).array();
-		return null;
+	public byte[] getBufferedBytes(BufferType type) {
+		ByteBuffer buf = buffers.get(type);
+		if (buf == null)
+			return null;
+		ByteBuffer data = buf.duplicate();
+		data.flip();
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		return bytes;
 	}
 
 	/**
-	 * Expands the given buffer (read or write)
-	 * 
+	 * Expands the given buffer
+	 *
 	 * @param type
 	 */
 
 	public void expandBuffer(BufferType type) {
 		ByteBuffer buf = getBuffer(type);
+		if (buf != null)
+			growBuffer(type, buf.capacity() * 2);
+	}
+
+	/**
+	 * Replaces the given buffer with a bigger one leased from the pool,
+	 * copying its contents, and gives the old one back.
+	 *
+	 * @param type
+	 * @param size
+	 * @return The new buffer.
+	 */
+
+	private ByteBuffer growBuffer(BufferType type, int size) {
+		ByteBuffer buf = getBuffer(type);
+		ByteBuffer bigger = pool.acquire(size);
+		EXPANSIONS.increment();
 		buf.flip();
-		setBuffer(type, ByteBuffer.allocate(buf.capacity() * 2).put(buf));
+		bigger.put(buf);
+		pool.release(buf);
+		setBuffer(type, bigger);
+		return bigger;
+	}
+
+	/**
+	 * Gives the read buffer and every queued write buffer back to the pool.
+	 * The object must not be used after releasing it.
+	 */
+
+	public synchronized void release() {
+		pool.release(buffers.remove(BufferType.read));
+		clearBuffer(BufferType.write);
+		if (congested.compareAndSet(true, false))
+			congestedChannels.decrementAndGet();
+	}
+
+	/**
+	 * Returns the amount of queued bytes not yet written to the channel.
+	 */
+
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * Returns true if whoever feeds this channel has to stop reading.
+	 *
+	 * The channel becomes congested once its queued buffers take up the high
+	 * watermark, and stays so until they go down to the low watermark, so
+	 * reads are not toggled on and off on every write. It is the capacity of
+	 * the buffers that counts, not the bytes in them, since that is the
+	 * memory the queue holds.
+	 */
+
+	public boolean isCongested() {
+		long pending = queuedCapacity.get();
+		if (pending >= HIGH_WATERMARK) {
+			if (congested.compareAndSet(false, true)) {
+				congestedChannels.incrementAndGet();
+				congestions.incrementAndGet();
+			}
+		} else if (pending <= LOW_WATERMARK) {
+			if (congested.compareAndSet(true, false))
+				congestedChannels.decrementAndGet();
+		}
+		return congested.get();
+	}
+
+	public static long getHighWatermark() {
+		return HIGH_WATERMARK;
+	}
+
+	public static long getLowWatermark() {
+		return LOW_WATERMARK;
+	}
+
+	/**
+	 * Returns the bytes queued and not yet written, adding every channel up.
+	 */
+
+	public static long getTotalPendingBytes() {
+		return totalPendingBytes.get();
+	}
+
+	/**
+	 * Returns the capacity of the buffers queued for writing, adding every
+	 * channel up, which is the memory the write queues hold.
+	 */
+
+	public static long getTotalQueuedCapacity() {
+		return totalQueuedCapacity.get();
+	}
+
+	/**
+	 * Returns how many channels are congested right now.
+	 */
+
+	public static long getCongestedChannels() {
+		return congestedChannels.get();
+	}
+
+	/**
+	 * Returns how many times a channel became congested since the proxy
+	 * started.
+	 */
+
+	public static long getCongestions() {
+		return congestions.get();
+	}
+
+	/**
+	 * Returns the given watermark property, in bytes, or the default if it is
+	 * missing or not positive.
+	 */
+
+	private static long getWatermark(String property, long defaultValue) {
+		String value = ConfigurationCommands.getInstance().getProperty(
+				property);
+		try {
+			long watermark = Long.parseLong(value.trim());
+			if (watermark > 0)
+				return watermark;
+		} catch (NumberFormatException e) {
+			if (!value.equals(""))
+				XMPPLogger.getInstance().warn(
+						"Invalid " + property + " property, using defaults");
+		}
+		return defaultValue;
 	}
 
 	/**
 	 * Returns true if the buffer has remaining information
-	 * 
+	 *
 	 * @param type
 	 */
 
 	public boolean hasRemainingFor(BufferType type) {
+		if (type == BufferType.write)
+			return !writeQueue.isEmpty();
 		return buffers.get(type) != null && buffers.get(type).hasRemaining();
 	}
 
 	/**
-	 * Returns true if the buffer has remaining information
-	 * 
+	 * Returns true if the buffer has information, for the write side this
+	 * means there is at least one queued buffer not yet fully written.
+	 *
 	 * @param type
 	 */
 
 	public boolean hasInformationFor(BufferType type) {
+		if (type == BufferType.write)
+			return !writeQueue.isEmpty();
 		return buffers.get(type) != null
 				&& (buffers.get(type).capacity() != buffers.get(type)
 						.remaining());
@@ -0,0 +1,77 @@
+package ar.edu.itba.pdc.proxy;
+
+import java.nio.channels.SelectionKey;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ConnectionMailbox {
+
+	private Queue<SelectionKey> pending;
+	private AtomicBoolean scheduled;
+	private Executor executor;
+	private MailboxConsumer consumer;
+	private Runnable drain;
+
+	/**
+	 * Creates a serial mailbox for a single ProxyConnection.
+	 *
+	 * Every key posted is handed to the consumer in the same order it was
+	 * posted, and at most one worker thread of the executor is working on the
+	 * mailbox at a time, so there is no need to lock the connection while
+	 * processing it.
+	 *
+	 * @param executor
+	 *            Executor shared by every mailbox.
+	 * @param consumer
+	 *            Handles every posted key.
+	 */
+
+	public ConnectionMailbox(Executor executor, MailboxConsumer consumer) {
+		this.pending = new ConcurrentLinkedQueue<SelectionKey>();
+		this.scheduled = new AtomicBoolean(false);
+		this.executor = executor;
+		this.consumer = consumer;
+		this.drain = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+	}
+
+	/**
+	 * Posts a readable key to the mailbox. If the mailbox is not already
+	 * scheduled or being drained, schedules a new worker turn for it.
+	 *
+	 * @param key
+	 */
+
+	public void post(SelectionKey key) {
+		pending.add(key);
+		schedule();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true))
+			executor.execute(drain);
+	}
+
+	/**
+	 * Consumes every pending key in a single worker turn. Keys posted while
+	 * draining are picked up by the same turn; those posted right after it
+	 * ends schedule a new one.
+	 */
+
+	private void drain() {
+		try {
+			SelectionKey key;
+			while ((key = pending.poll()) != null)
+				consumer.consume(key);
+		} finally {
+			scheduled.set(false);
+			if (!pending.isEmpty())
+				schedule();
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package ar.edu.itba.pdc.proxy;
+
+import java.nio.channels.SelectionKey;
+
+public interface MailboxConsumer {
+
+	public void consume(SelectionKey key);
+}
@@ -7,25 +7,45 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.codec.binary.Base64;
 
-import ar.edu.itba.pdc.exceptions.IncompleteElementsException;
 import ar.edu.itba.pdc.filters.Filter;
 import ar.edu.itba.pdc.filters.SilentUsersFilter;
 import ar.edu.itba.pdc.filters.StatisticsFilter;
 import ar.edu.itba.pdc.filters.TransformationFilter;
 import ar.edu.itba.pdc.jabber.Message;
 import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.metrics.Counter;
+import ar.edu.itba.pdc.metrics.Latencies;
+import ar.edu.itba.pdc.metrics.LatencyStamp;
+import ar.edu.itba.pdc.metrics.Metrics;
+import ar.edu.itba.pdc.metrics.enumerations.Direction;
+import ar.edu.itba.pdc.nio.TimingWheel.Timeout;
 import ar.edu.itba.pdc.parser.XMPPParser;
 import ar.edu.itba.pdc.proxy.enumerations.BufferType;
 import ar.edu.itba.pdc.proxy.enumerations.ConnectionState;
 import ar.edu.itba.pdc.stanzas.Stanza;
+import ar.edu.itba.pdc.stanzas.StanzaSerializer;
+import ar.edu.itba.pdc.upstream.Endpoint;
 
 public class ProxyConnection {
 
+	/* Open connections in each state, shared by every reactor */
+	private static AtomicLongArray connectionsByState = new AtomicLongArray(
+			ConnectionState.values().length);
+
+	private static final Counter CLIENT_BYTES_IN = counter("bytes.client.in");
+	private static final Counter CLIENT_BYTES_OUT = counter("bytes.client.out");
+	private static final Counter SERVER_BYTES_IN = counter("bytes.server.in");
+	private static final Counter SERVER_BYTES_OUT = counter("bytes.server.out");
+	private static final Counter MESSAGES = counter("stanzas.message");
+	private static final Counter PRESENCES = counter("stanzas.presence");
+	private static final Counter OTHER_STANZAS = counter("stanzas.other");
+	private static final Counter PARSE_FAILURES = counter("parser.failures");
+
 	/* Socket Channels */
 	private SocketChannel server = null;
 	private SocketChannel client = null;
@@ -40,6 +60,7 @@ public class ProxyConnection {
 	/* Server connection parameters */
 	private String serverName = null;
 	private String authorizationStream = null;
+	private Endpoint endpoint = null;
 
 	private XMPPLogger logger = XMPPLogger.getInstance();
 
@@ -54,8 +75,20 @@ public class ProxyConnection {
 
 	private ConnectionState state;
 
+	/* Every socket channel has its own incremental parser */
+	private Map<SocketChannel, XMPPParser> parsersMap = new HashMap<SocketChannel, XMPPParser>();
+
 	private List<Filter> filterList;
-	private XMPPParser parser;
+	private StanzaSerializer serializer = new StanzaSerializer();
+	private ConnectionMailbox mailbox;
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile boolean expired = false;
+	private AtomicBoolean keysUpdatePending = new AtomicBoolean(false);
+	/* True while a read of the channel waits in the mailbox or is being processed */
+	private volatile boolean clientReadInFlight = false;
+	private volatile boolean serverReadInFlight = false;
+	private AtomicBoolean released = new AtomicBoolean(false);
+	private Timeout timeout;
 
 	public ProxyConnection(SocketChannel server, SocketChannel client) {
 		this(client);
@@ -65,9 +98,10 @@ public class ProxyConnection {
 	public ProxyConnection(SocketChannel client) {
 		this.client = client;
 		this.state = ConnectionState.noState;
+		connectionsByState.incrementAndGet(state.ordinal());
 		buffersMap.put(client, new ChannelBuffers());
+		parsersMap.put(client, new XMPPParser());
 
-		this.parser = new XMPPParser();
 		this.filterList = new LinkedList<Filter>();
 		initialize();
 	}
@@ -78,6 +112,122 @@ public class ProxyConnection {
 		filterList.add(TransformationFilter.getInstance());
 	}
 
+	/**
+	 * Sets the mailbox through which every read of this connection is
+	 * processed.
+	 * 
+	 * @param mailbox
+	 */
+
+	public void setMailbox(ConnectionMailbox mailbox) {
+		this.mailbox = mailbox;
+	}
+
+	public ConnectionMailbox getMailbox() {
+		return mailbox;
+	}
+
+	/**
+	 * Sets the timeout that checks this connection's deadlines, cancelling
+	 * the previous one.
+	 * 
+	 * @param timeout
+	 */
+
+	public void setTimeout(Timeout timeout) {
+		if (this.timeout != null)
+			this.timeout.cancel();
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Marks the connection to be closed by its mailbox, so it is not closed
+	 * while a worker is processing it.
+	 */
+
+	public void expire() {
+		expired = true;
+	}
+
+	public boolean isExpired() {
+		return expired;
+	}
+
+	/**
+	 * Asks for the selection keys of this connection to be updated. Returns
+	 * false if an update was already requested and did not start yet, in
+	 * which case it will see whatever changed in the meantime.
+	 */
+
+	public boolean requestKeysUpdate() {
+		return keysUpdatePending.compareAndSet(false, true);
+	}
+
+	/**
+	 * Called once a requested update starts, so changes made from now on
+	 * request a new one.
+	 */
+
+	public void keysUpdateStarted() {
+		keysUpdatePending.set(false);
+	}
+
+	/**
+	 * Marks a read of the given channel as handed to the mailbox. The channel
+	 * is not read again until the worker turn that performs it is done.
+	 * 
+	 * @param s
+	 */
+
+	public void readPosted(SocketChannel s) {
+		setReadInFlight(s, true);
+	}
+
+	/**
+	 * Marks the read of the given channel as done, so the channel can be
+	 * read again.
+	 * 
+	 * @param s
+	 */
+
+	public void readDone(SocketChannel s) {
+		setReadInFlight(s, false);
+	}
+
+	public boolean isReadInFlight(SocketChannel s) {
+		return (s == client) ? clientReadInFlight : serverReadInFlight;
+	}
+
+	private void setReadInFlight(SocketChannel s, boolean inFlight) {
+		if (s == client)
+			clientReadInFlight = inFlight;
+		else
+			serverReadInFlight = inFlight;
+	}
+
+	/**
+	 * Returns when something was last read from either channel.
+	 */
+
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Returns since when one of the channels has not written any of its
+	 * queued bytes, or 0 if both are up to date.
+	 */
+
+	public long getWriteStalledSince() {
+		long stalledSince = 0;
+		for (ChannelBuffers buffers : buffersMap.values()) {
+			long since = buffers.getWriteStalledSince();
+			if (since != 0 && (stalledSince == 0 || since < stalledSince))
+				stalledSince = since;
+		}
+		return stalledSince;
+	}
+
 	public SocketChannel getServerChannel() {
 		return server;
 	}
@@ -103,11 +253,27 @@ public class ProxyConnection {
 
 	}
 
+	/**
+	 * Places the connection on one of its server's endpoints, where it counts
+	 * as a session until it is released.
+	 * 
+	 * @param endpoint
+	 */
+
+	public void setEndpoint(Endpoint endpoint) {
+		this.endpoint = endpoint;
+		endpoint.opened();
+	}
+
+	public Endpoint getEndpoint() {
+		return endpoint;
+	}
+
 	/**
 	 * Once the account multiplexing was resolved, sets the server to connect.
 	 * 
 	 * Also allocates a new ChannelBuffers object which will contain the read
-	 * and write buffers related to this channel.
+	 * and write buffers related to this channel, and its own parser.
 	 * 
 	 * @param server
 	 *            Server Socket Channel.
@@ -116,6 +282,7 @@ public class ProxyConnection {
 	public void setServer(SocketChannel server) {
 		this.server = server;
 		buffersMap.put(server, new ChannelBuffers());
+		parsersMap.put(server, new XMPPParser());
 	}
 
 	/**
@@ -147,6 +314,23 @@ public class ProxyConnection {
 		return buffersMap.get(s).getBuffer(bufType);
 	}
 
+	/**
+	 * Gives the buffers of both channels back to the BufferPool. Called once
+	 * the connection is closed, later calls do nothing.
+	 */
+
+	public void release() {
+		if (!released.compareAndSet(false, true))
+			return;
+		connectionsByState.decrementAndGet(state.ordinal());
+		if (timeout != null)
+			timeout.cancel();
+		if (endpoint != null)
+			endpoint.closed();
+		for (ChannelBuffers buffers : buffersMap.values())
+			buffers.release();
+	}
+
 	/**
 	 * Returns true if the connection has an assigned socket channel for the
 	 * client
@@ -215,6 +399,21 @@ public class ProxyConnection {
 				&& buffersMap.get(s).hasInformationFor(BufferType.write);
 	}
 
+	/**
+	 * Returns true if the given socket channel can be read, that is, if the
+	 * channel what is read from it goes to is not congested (see
+	 * <i>ChannelBuffers.isCongested</i>).
+	 * 
+	 * @param s
+	 */
+
+	public boolean canReadFrom(SocketChannel s) {
+		SocketChannel opposite = (s == client) ? server : client;
+		ChannelBuffers buffers = (opposite == null) ? null : buffersMap
+				.get(opposite);
+		return buffers == null || !buffers.isCongested();
+	}
+
 	/**
 	 * Performs a read operation from a given socket channel into it's
 	 * respective read buffer contained in the ChannelBuffers object associated
@@ -233,6 +432,11 @@ public class ProxyConnection {
 				server.close();
 			return -1;
 		}
+		if (bytesRead > 0) {
+			buffersMap.get(s).markRead();
+			lastActivity = System.currentTimeMillis();
+			((s == client) ? CLIENT_BYTES_IN : SERVER_BYTES_IN).add(bytesRead);
+		}
 
 		return bytesRead;
 	}
@@ -248,81 +452,85 @@ public class ProxyConnection {
 	 * list, every Stanza object resulting is then sent to the appropriate
 	 * channel.
 	 * 
+	 * It is only called from the connection's mailbox, so it never runs
+	 * concurrently for the same connection.
+	 * 
 	 * @param s
 	 * @return
 	 * @throws IOException
 	 */
 
-	public synchronized void process(int bytesRead, SocketChannel s)
+	public void process(int bytesRead, SocketChannel s)
 			throws IOException {
 		if (bytesRead > 0) {
 			
-			List<Stanza> stanzaList = null;
-			
-			try {
-				/* Parse what was just read */
-				stanzaList = parser.parse(getBuffer(s, BufferType.read));
-				
-				for (Stanza stanza : stanzaList) {
-					if (stanza.getElement() != null && connected())
-						if (stanza.getElement().getFrom() == null
-								&& s == client)
-							stanza.getElement().setFrom(getClientJID());
-
-					/* Apply every filter to the each stanza */
-					for (Filter f : filterList)
-						f.apply(stanza);
-
-					boolean rejected = false;
-
-					if (stanza.isMessage()) {
-						Message msg = (Message) stanza.getElement();
-
-						rejected = (msg.getFrom().contains(getClientJID()) || msg
-								.getTo().contains(getClientJID()))
-								&& stanza.isrejected();
-
-						if (rejected && client == s)
-							send(s, stanza);
-						else if (rejected) 
-							logger.info("Dropping message sent to " + clientJID + " - SilenceUsersFilter");
-							
-					}
-
-					if (!rejected) {
-						if (!stanza.isMessage() || ((Message)stanza.getElement()).getMessage() != null)
-							sendToOppositeChannel(s, stanza);
-					}
+			/* Parse what was just read, resuming the previous read's parsing */
+			XMPPParser parser = parsersMap.get(s);
+			List<Stanza> stanzaList = parser.parse(getBuffer(s,
+					BufferType.read));
+			long readAt = buffersMap.get(s).getLastReadAt();
+			Direction direction = (s == client) ? Direction.clientToServer
+					: Direction.serverToClient;
+
+			for (Stanza stanza : stanzaList) {
+				count(stanza);
+				if (stanza.getElement() != null && connected())
+					if (stanza.getElement().getFrom() == null && s == client)
+						stanza.getElement().stampFrom(getClientJID());
+
+				/* Apply every filter to the each stanza */
+				for (Filter f : filterList)
+					f.apply(stanza);
+
+				boolean rejected = false;
+
+				if (stanza.isMessage()) {
+					Message msg = (Message) stanza.getElement();
+
+					/* The sender is not stamped on what the server sends */
+					rejected = (contains(msg.getFrom(), getClientJID()) || contains(
+							msg.getTo(), getClientJID()))
+							&& stanza.isrejected();
+
+					if (rejected && client == s)
+						send(s, stanza, stamp(direction, stanza, readAt));
+					else if (rejected) 
+						logger.info("Dropping message sent to " + clientJID + " - SilenceUsersFilter");
+						
+				}
 
+				if (!rejected) {
+					if (!stanza.isMessage() || ((Message)stanza.getElement()).getMessage() != null)
+						send((s == client) ? server : client, stanza,
+								stamp(direction, stanza, readAt));
 				}
-				getBuffer(s, BufferType.read).clear();
-			} catch (ParserConfigurationException e) {
-				logger.error("Parser configuration error");
-			} catch (IncompleteElementsException e) {
-				expandBuffer(s, BufferType.read);
+
 			}
+
+			/* Every stanza was copied to a write queue, drop its bytes */
+			parser.compact(getBuffer(s, BufferType.read));
+
+			/* The buffer only holds an incomplete stanza, make room for the rest */
+			if (!buffersMap.get(s).hasRemainingFor(BufferType.read))
+				expandBuffer(s, BufferType.read);
 		}
 	}
 
 	/**
-	 * Performs the write operation to a given socket channel
+	 * Performs the write operation to a given socket channel, writing as much
+	 * of its write queue as the channel accepts. Whatever could not be
+	 * written stays queued for the next OP_WRITE.
 	 * 
 	 * @param s
 	 */
 
-	public synchronized int writeTo(SocketChannel s) throws IOException {
-		int bytesWrote = 0;
-		if (hasInformationForChannel(s)) {
-			ChannelBuffers channelBuffers = buffersMap.get(s);
-			if (channelBuffers != null
-					&& channelBuffers.hasRemainingFor(BufferType.write)) {
-				channelBuffers.flipBuffer(BufferType.write);
-				bytesWrote = s
-						.write(channelBuffers.getBuffer(BufferType.write));
-				channelBuffers.clearBuffer(BufferType.write);
-			}
-		}
-		return bytesWrote;
+	public long writeTo(SocketChannel s) throws IOException {
+		ChannelBuffers channelBuffers = buffersMap.get(s);
+		if (channelBuffers == null)
+			return 0;
+		long written = channelBuffers.writeTo(s);
+		((s == client) ? CLIENT_BYTES_OUT : SERVER_BYTES_OUT).add(written);
+		return written;
 	}
 
 	/**
@@ -342,16 +550,38 @@ public class ProxyConnection {
 	/**
 	 * Sends the given stanza to the given channel.
 	 * 
-	 * Uses the getXMLString() method of the Stanza object to retrieve the XML
-	 * text in order to send it as a byte array to the <i>send</i> method which
-	 * will perform the operation.
+	 * If no filter changed the stanza, its original bytes are copied straight
+	 * into the channel's write queue. Otherwise, the StanzaSerializer writes
+	 * it from its fields into a pooled buffer which is queued as is.
 	 * 
 	 * @param s
 	 * @param stanza
 	 */
 
 	public void send(SocketChannel s, Stanza stanza) {
-		sendMessage(s, stanza.getXMLString().getBytes());
+		send(s, stanza, null);
+	}
+
+	/**
+	 * Sends the given stanza to the given channel, telling the given stamp
+	 * once it is written.
+	 * 
+	 * @param s
+	 * @param stanza
+	 * @param stamp
+	 *            May be null.
+	 */
+
+	private void send(SocketChannel s, Stanza stanza, LatencyStamp stamp) {
+		if (stanza.isPassthrough())
+			buffersMap.get(s).writeToBuffer(stanza.getOriginalBytes(), stamp);
+		else
+			buffersMap.get(s).enqueue(serializer.serialize(stanza), stamp);
+	}
+
+	private LatencyStamp stamp(Direction direction, Stanza stanza, long readAt) {
+		return Latencies.getInstance().stamp(direction, stanza, readAt,
+				clientJID);
 	}
 
 	/**
@@ -363,7 +593,15 @@ public class ProxyConnection {
 
 	private void sendMessage(SocketChannel s, byte[] bytes) {
 		appendToBuffer(s, BufferType.write, bytes);
-		buffersMap.get(s).clearBuffer(BufferType.read);
+	}
+
+	/**
+	 * Returns true while the client's authorization is awaited, that is, once
+	 * it sent its stream header.
+	 */
+
+	public boolean isNegotiating() {
+		return state == ConnectionState.negotiating;
 	}
 
 	/**
@@ -375,6 +613,23 @@ public class ProxyConnection {
 		return state == ConnectionState.ready;
 	}
 
+	/**
+	 * Returns true while the connection to the server is being established.
+	 */
+
+	public boolean isConnectingToServer() {
+		return state == ConnectionState.waitingForServerSocket;
+	}
+
+	/**
+	 * Marks that the socket to the server was opened and its connection is
+	 * still in progress, so no other connection attempt is started for it.
+	 */
+
+	public void waitForServerSocket() {
+		setState(ConnectionState.waitingForServerSocket);
+	}
+
 	/**
 	 * Handles the negotiation with the client and the server before
 	 * establishing the connection between them.
@@ -388,29 +643,29 @@ public class ProxyConnection {
 
 	public void handleConnectionStanza(SocketChannel s) throws IOException {
 		read(s);
-		ByteBuffer msg = buffersMap.get(s).getBuffer(BufferType.read);
-		String read = new String(msg.array()).substring(0, msg.position());
+		String read = new String(buffersMap.get(s).getBufferedBytes(
+				BufferType.read));
 		switch (state) {
 			case noState :
 				if (read.startsWith("<?xml")) {
 					if (read.contains("<stream")) {
-						state = ConnectionState.negotiating;
+						setState(ConnectionState.negotiating);
 						sendMessage(s, INITIAL_SERVER_STREAM);
 						sendMessage(s, NEGOTIATION);
 					} else {
-						state = ConnectionState.waitingForStream;
+						setState(ConnectionState.waitingForStream);
 					}
 				} else {
-					logger.warn("Invalid initial message from client");
+					handshakeFailed("Invalid initial message from client");
 				}
 				break;
 			case waitingForStream :
 				if (read.startsWith("<stream")) {
-					state = ConnectionState.negotiating;
+					setState(ConnectionState.negotiating);
 					sendMessage(s, INITIAL_SERVER_STREAM);
 					sendMessage(s, NEGOTIATION);
 				} else {
-					logger.warn("Invalid stream message from client");
+					handshakeFailed("Invalid stream message from client");
 				}
 				break;
 			case negotiating :
@@ -422,20 +677,20 @@ public class ProxyConnection {
 					String stringData = new String(data);
 					this.clientUsername = stringData.substring(1,
 							stringData.indexOf(0, 1));
-					this.state = ConnectionState.ready;
+					setState(ConnectionState.ready);
 					buffersMap.get(client).clearBuffer(BufferType.read);
 				} else {
-					logger.warn("Invalid authorization message from client");
+					handshakeFailed("Invalid authorization message from client");
 				}
 				break;
 			case connectingToServer :
 				if (read.contains("<stream")) {
 					sendMessage(server, authorizationStream.getBytes());
-					this.state = ConnectionState.connected;
+					setState(ConnectionState.connected);
 				} else if (read.startsWith("<?xml")) {
-					this.state = ConnectionState.waitingForServerFeatures;
+					setState(ConnectionState.waitingForServerFeatures);
 				} else {
-					logger.warn("Invalid initial message from server");
+					handshakeFailed("Invalid initial message from server");
 				}
 				break;
 			case waitingForServerFeatures :
@@ -443,13 +698,13 @@ public class ProxyConnection {
 					sendMessage(server, authorizationStream.getBytes());
 					logger.info("Client " + getClientJID()
 							+ " finished connecting to server.");
-					this.state = ConnectionState.connected;
+					setState(ConnectionState.connected);
 				} else {
 					if (read.contains("failure")) {
-						this.state = ConnectionState.noState;
+						setState(ConnectionState.noState);
 						sendMessage(client, read.getBytes());
 					}
-					this.state = ConnectionState.waitingForServerFeatures;
+					setState(ConnectionState.waitingForServerFeatures);
 				}
 				break;
 			default :
@@ -458,30 +713,108 @@ public class ProxyConnection {
 		buffersMap.get(s).clearBuffer(BufferType.read);
 	}
 
+	/**
+	 * Logs and counts a handshake message the connection could not make sense
+	 * of.
+	 * 
+	 * @param reason
+	 */
+
+	private void handshakeFailed(String reason) {
+		PARSE_FAILURES.increment();
+		logger.warn(reason);
+	}
+
 	/**
 	 * Writes the first stream to the server specifying the server name.
 	 */
 
 	public void writeFirstStreamToServer() {
 		if (serverName != null) {
-			String stream = INITIAL_STREAM
-					+ "to='"
-					+ serverName
-					+ "' xml:lang=\"en\" xmlns:xml=\"http://www.w3.org/XML/1998/namespace\">";
-			sendMessage(server, stream.getBytes());
-			this.state = ConnectionState.connectingToServer;
+			sendMessage(server, serverStreamFor(serverName));
+			setState(ConnectionState.connectingToServer);
 		}
 	}
 
 	/**
-	 * Sends a stanza to the opposite channel. If the client is the given socket
-	 * channel, then the receiver will be the server, and the other way around.
+	 * Returns the first stream sent to the given server.
 	 * 
-	 * @param s
-	 * @param stanza
+	 * @param serverName
 	 */
 
-	private void sendToOppositeChannel(SocketChannel s, Stanza stanza) {
-		send((s == client) ? server : client, stanza);
+	public static byte[] serverStreamFor(String serverName) {
+		String stream = INITIAL_STREAM
+				+ "to='"
+				+ serverName
+				+ "' xml:lang=\"en\" xmlns:xml=\"http://www.w3.org/XML/1998/namespace\">";
+		return stream.getBytes();
+	}
+
+	/**
+	 * Connects the client, once it authenticated, through a stream to its
+	 * server that was already opened (see WarmStreamPool), so the stream
+	 * negotiation is skipped and the client's authorization is sent right
+	 * away.
+	 * 
+	 * @param server
+	 *            Channel whose stream already got the server's features.
+	 */
+
+	public void useServerStream(SocketChannel server) {
+		setServer(server);
+		sendMessage(server, authorizationStream.getBytes());
+		setState(ConnectionState.connected);
+		logger.info("Client " + getClientJID()
+				+ " connected to server through a warm stream.");
+	}
+
+	/**
+	 * Moves the connection to the given state, keeping the amount of
+	 * connections in each state up to date.
+	 * 
+	 * @param state
+	 */
+
+	private void setState(ConnectionState state) {
+		if (!released.get()) {
+			connectionsByState.decrementAndGet(this.state.ordinal());
+			connectionsByState.incrementAndGet(state.ordinal());
+		}
+		this.state = state;
+	}
+
+	private void count(Stanza stanza) {
+		if (stanza.isMessage())
+			MESSAGES.increment();
+		else if (stanza.isPresence())
+			PRESENCES.increment();
+		else
+			OTHER_STANZAS.increment();
+	}
+
+	/**
+	 * Counts a read that could not be parsed or processed.
+	 */
+
+	public static void parseFailed() {
+		PARSE_FAILURES.increment();
+	}
+
+	/**
+	 * Returns how many open connections are in the given state.
+	 * 
+	 * @param state
+	 */
+
+	public static long getConnections(ConnectionState state) {
+		return connectionsByState.get(state.ordinal());
+	}
+
+	private static Counter counter(String name) {
+		return Metrics.getInstance().counter(name);
+	}
+
+	private static boolean contains(String jid, String part) {
+		return jid != null && jid.contains(part);
 	}
 }
@@ -5,6 +5,7 @@ public enum ConnectionState {
 	waitingForStream,
 	negotiating,
 	ready,
+	waitingForServerSocket,
 	connectingToServer,
 	waitingForServerFeatures,
 	connected	
@@ -1,5 +1,8 @@
 package ar.edu.itba.pdc.stanzas;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 import ar.edu.itba.pdc.jabber.JabberElement;
 import ar.edu.itba.pdc.jabber.Message;
 import ar.edu.itba.pdc.jabber.Presence;
@@ -10,6 +13,9 @@ public class Stanza {
 	private boolean completed, rejected;
 	private JabberElement element;
 	private String xmlString = "";
+	private ByteBuffer original;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 
 	public Stanza() {
 		this.completed = false;
@@ -47,14 +53,15 @@ public class Stanza {
 	}
 
 	/**
-	 * Returns the XML string equivalent to the marshaled stanza object.
+	 * Returns the original XML text of the stanza. Modified elements are
+	 * written with a StanzaSerializer instead.
 	 * 
 	 * @return
 	 */
 
 	public String getXMLString() {
-		if (isMessage())
-			return ((Message) element).getXMLMessage();
+		if (original != null)
+			return UTF8.decode(original.duplicate()).toString();
 		return xmlString;
 	}
 
@@ -69,11 +76,47 @@ public class Stanza {
 	}
 
 	/**
-	 * Confirms the stanza was parsed correctly
+	 * Sets the original bytes of the stanza, as they were read. The buffer is
+	 * only valid until the parser that produced it compacts its read buffer.
+	 * 
+	 * @param original
+	 */
+
+	public void setOriginalBytes(ByteBuffer original) {
+		this.original = original;
+	}
+
+	/**
+	 * Returns the original bytes of the stanza, or null if it was not read
+	 * from a channel.
+	 * 
+	 * @return
+	 */
+
+	public ByteBuffer getOriginalBytes() {
+		return (original == null) ? null : original.duplicate();
+	}
+
+	/**
+	 * Returns true if the stanza can be sent using its original bytes, which
+	 * is the case unless a filter changed the element it contains.
+	 * 
+	 * @return
+	 */
+
+	public boolean isPassthrough() {
+		return original != null && (element == null || !element.isModified());
+	}
+
+	/**
+	 * Confirms the stanza was parsed correctly. From now on, any change to its
+	 * element marks it as modified.
 	 */
 
 	public void complete() {
 		this.completed = true;
+		if (element != null)
+			element.parsed();
 	}
 
 	/**
@@ -0,0 +1,361 @@
+package ar.edu.itba.pdc.stanzas;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import ar.edu.itba.pdc.jabber.Message;
+import ar.edu.itba.pdc.jabber.Presence;
+import ar.edu.itba.pdc.proxy.BufferPool;
+
+public class StanzaSerializer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* Pre-encoded constant fragments */
+	private static final byte[] MESSAGE_OPEN = bytes("<message");
+	private static final byte[] MESSAGE_CLOSE = bytes("</message>");
+	private static final byte[] PRESENCE_OPEN = bytes("<presence");
+	private static final byte[] PRESENCE_CLOSE = bytes("</presence>");
+	private static final byte[] FROM = bytes(" from='");
+	private static final byte[] TO = bytes(" to='");
+	private static final byte[] TYPE = bytes(" type='");
+	private static final byte[] CHAT = bytes("chat");
+	private static final byte[] ACTIVE_OPEN = bytes("<active xmlns='");
+	private static final byte[] ACTIVE_CLOSE = bytes("</active>");
+	private static final byte[] BODY_OPEN = bytes("<body>");
+	private static final byte[] BODY_CLOSE = bytes("</body>");
+	private static final byte[] ERROR_OPEN = bytes("<error code='");
+	private static final byte[] ERROR_CLOSE = bytes("</error>");
+	private static final byte[] QUOTE = bytes("'");
+	private static final byte[] QUOTE_END = bytes("'>");
+	private static final byte[] END = bytes(">");
+	private static final byte[] EMPTY_END = bytes("/>");
+
+	private static final byte[] AMP = bytes("&amp;");
+	private static final byte[] LT = bytes("&lt;");
+	private static final byte[] GT = bytes("&gt;");
+	private static final byte[] APOS = bytes("&apos;");
+	private static final byte[] QUOT = bytes("&quot;");
+
+	/* Room for the tags around the fields */
+	private static final int MARKUP_SIZE = 256;
+
+	private BufferPool pool = BufferPool.getInstance();
+	private ByteBuffer out;
+
+	/**
+	 * Serializes a stanza as UTF-8 into a buffer leased from the BufferPool,
+	 * escaping every field. The returned buffer is flipped, ready to be
+	 * written, and has to be released by whoever consumes it.
+	 *
+	 * Not thread safe: every connection uses its own serializer.
+	 *
+	 * @param stanza
+	 * @return
+	 */
+
+	public ByteBuffer serialize(Stanza stanza) {
+		if (stanza.isMessage())
+			writeMessage((Message) stanza.getElement());
+		else if (stanza.isPresence())
+			writePresence((Presence) stanza.getElement(),
+					stanza.getOriginalBytes());
+		else
+			writeRaw(stanza.getXMLString());
+		ByteBuffer serialized = out;
+		out = null;
+		serialized.flip();
+		return serialized;
+	}
+
+	/**
+	 * Writes a message using the template
+	 * <code>&lt;message from to type&gt;&lt;active/&gt;&lt;body/&gt;&lt;error/&gt;&lt;/message&gt;</code>
+	 * , where the active and error elements are optional. The error body is
+	 * already XML, so it is the only field written as is.
+	 */
+
+	private void writeMessage(Message msg) {
+		out = pool.acquire(MARKUP_SIZE + length(msg.getFrom())
+				+ length(msg.getTo()) + length(msg.getMessage())
+				+ length(msg.getActive()) + length(msg.getErrorXMLBody()));
+		put(MESSAGE_OPEN);
+		putAttribute(FROM, msg.getFrom());
+		putAttribute(TO, msg.getTo());
+		put(TYPE);
+		if (msg.getType() != null)
+			putEscaped(msg.getType());
+		else
+			put(CHAT);
+		put(QUOTE_END);
+
+		if (msg.getActive() != null && !msg.getActive().equals("")) {
+			put(ACTIVE_OPEN);
+			putEscaped(msg.getActiveXmlns());
+			put(QUOTE_END);
+			putEscaped(msg.getActive());
+			put(ACTIVE_CLOSE);
+		}
+
+		if (msg.getMessage() != null) {
+			put(BODY_OPEN);
+			putEscaped(msg.getMessage());
+			put(BODY_CLOSE);
+		}
+
+		if (msg.getErrorCode() != 0) {
+			put(ERROR_OPEN);
+			putInt(msg.getErrorCode());
+			put(QUOTE);
+			put(TYPE);
+			putEscaped(msg.getErrorType());
+			put(QUOTE_END);
+			writeRaw(msg.getErrorXMLBody());
+			put(ERROR_CLOSE);
+		}
+		put(MESSAGE_CLOSE);
+	}
+
+	/**
+	 * Writes a presence with its from, to and type attributes taken from its
+	 * fields. Any other attribute and the whole content of the presence
+	 * (show, status, priority and so on) are copied from its original bytes.
+	 */
+
+	private void writePresence(Presence presence, ByteBuffer original) {
+		out = pool.acquire(MARKUP_SIZE + length(presence.getFrom())
+				+ length(presence.getTo())
+				+ (original == null ? 0 : original.remaining()));
+		put(PRESENCE_OPEN);
+		putAttribute(FROM, presence.getFrom());
+		putAttribute(TO, presence.getTo());
+		putAttribute(TYPE, presence.getType());
+		if (original == null) {
+			put(EMPTY_END);
+			return;
+		}
+
+		int tagEnd = openingTagEnd(original);
+		boolean empty = original.get(tagEnd - 1) == '/';
+		copyOtherAttributes(original, PRESENCE_OPEN.length, empty ? tagEnd - 1
+				: tagEnd);
+		if (empty) {
+			put(EMPTY_END);
+			return;
+		}
+		put(END);
+		int contentEnd = original.limit() - 1;
+		while (contentEnd > tagEnd && original.get(contentEnd) != '<')
+			contentEnd--;
+		copy(original, tagEnd + 1, contentEnd);
+		put(PRESENCE_CLOSE);
+	}
+
+	/**
+	 * Returns the offset of the '>' ending the opening tag.
+	 */
+
+	private static int openingTagEnd(ByteBuffer original) {
+		byte quote = 0;
+		for (int i = 0; i < original.limit(); i++) {
+			byte b = original.get(i);
+			if (quote != 0) {
+				if (b == quote)
+					quote = 0;
+			} else if (b == '\'' || b == '"') {
+				quote = b;
+			} else if (b == '>') {
+				return i;
+			}
+		}
+		return original.limit() - 1;
+	}
+
+	/**
+	 * Copies every attribute between from and to except the ones written from
+	 * the element fields.
+	 */
+
+	private void copyOtherAttributes(ByteBuffer original, int from, int to) {
+		int i = from;
+		while (i < to) {
+			while (i < to && isWhitespace(original.get(i)))
+				i++;
+			int nameStart = i;
+			while (i < to && original.get(i) != '=' && !isWhitespace(original.get(i)))
+				i++;
+			int nameEnd = i;
+			while (i < to && original.get(i) != '\'' && original.get(i) != '"')
+				i++;
+			if (i == to)
+				return;
+			byte quote = original.get(i++);
+			while (i < to && original.get(i) != quote)
+				i++;
+			i++;
+			if (!isAttribute(original, nameStart, nameEnd, "from")
+					&& !isAttribute(original, nameStart, nameEnd, "to")
+					&& !isAttribute(original, nameStart, nameEnd, "type")) {
+				ensure(1);
+				out.put((byte) ' ');
+				copy(original, nameStart, Math.min(i, to));
+			}
+		}
+	}
+
+	private static boolean isAttribute(ByteBuffer original, int from, int to,
+			String name) {
+		if (to - from != name.length())
+			return false;
+		for (int i = 0; i < name.length(); i++)
+			if (original.get(from + i) != name.charAt(i))
+				return false;
+		return true;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private void putAttribute(byte[] attribute, String value) {
+		if (value == null)
+			return;
+		put(attribute);
+		putEscaped(value);
+		put(QUOTE);
+	}
+
+	/**
+	 * Writes a string that is already XML.
+	 */
+
+	private void writeRaw(String xml) {
+		if (out == null)
+			out = pool.acquire(MARKUP_SIZE + length(xml));
+		if (xml == null)
+			return;
+		int i = 0;
+		while (i < xml.length())
+			i = putChar(xml, i);
+	}
+
+	/**
+	 * Writes a string as UTF-8, escaping the XML special characters.
+	 */
+
+	private void putEscaped(String value) {
+		if (value == null)
+			return;
+		int i = 0;
+		while (i < value.length()) {
+			switch (value.charAt(i)) {
+				case '&' :
+					put(AMP);
+					break;
+				case '<' :
+					put(LT);
+					break;
+				case '>' :
+					put(GT);
+					break;
+				case '\'' :
+					put(APOS);
+					break;
+				case '"' :
+					put(QUOT);
+					break;
+				default :
+					i = putChar(value, i);
+					continue;
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * Writes the character at index i of value as UTF-8, returning the index
+	 * of the next one (surrogate pairs take two).
+	 */
+
+	private int putChar(String value, int i) {
+		char c = value.charAt(i);
+		ensure(4);
+		if (c < 0x80) {
+			out.put((byte) c);
+			return i + 1;
+		}
+		if (c < 0x800) {
+			out.put((byte) (0xC0 | (c >> 6)));
+			out.put((byte) (0x80 | (c & 0x3F)));
+			return i + 1;
+		}
+		if (Character.isHighSurrogate(c) && i + 1 < value.length()
+				&& Character.isLowSurrogate(value.charAt(i + 1))) {
+			int codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+			out.put((byte) (0xF0 | (codePoint >> 18)));
+			out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+			out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+			out.put((byte) (0x80 | (codePoint & 0x3F)));
+			return i + 2;
+		}
+		/* Unpaired surrogates can't be encoded */
+		if (Character.isSurrogate(c))
+			c = '\uFFFD';
+		out.put((byte) (0xE0 | (c >> 12)));
+		out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+		out.put((byte) (0x80 | (c & 0x3F)));
+		return i + 1;
+	}
+
+	private void putInt(int value) {
+		ensure(11);
+		if (value < 0) {
+			out.put((byte) '-');
+			value = -value;
+		}
+		int divisor = 1;
+		while (value / divisor >= 10)
+			divisor *= 10;
+		for (; divisor > 0; divisor /= 10)
+			out.put((byte) ('0' + (value / divisor) % 10));
+	}
+
+	private void put(byte[] fragment) {
+		ensure(fragment.length);
+		out.put(fragment);
+	}
+
+	private void copy(ByteBuffer original, int from, int to) {
+		if (to <= from)
+			return;
+		ensure(to - from);
+		ByteBuffer range = original.duplicate();
+		range.limit(to);
+		range.position(from);
+		out.put(range);
+	}
+
+	/**
+	 * Makes sure there is room for n more bytes, moving what was written so
+	 * far to a bigger leased buffer if needed.
+	 */
+
+	private void ensure(int n) {
+		if (out.remaining() >= n)
+			return;
+		ByteBuffer bigger = pool.acquire(Math.max(out.capacity() * 2,
+				out.position() + n));
+		out.flip();
+		bigger.put(out);
+		pool.release(out);
+		out = bigger;
+	}
+
+	private static int length(String value) {
+		return (value == null) ? 0 : value.length();
+	}
+
+	private static byte[] bytes(String fragment) {
+		return fragment.getBytes(UTF8);
+	}
+}
@@ -0,0 +1,198 @@
+package ar.edu.itba.pdc.upstream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.metrics.Counter;
+import ar.edu.itba.pdc.metrics.Gauge;
+import ar.edu.itba.pdc.metrics.Metrics;
+
+public class Endpoint {
+
+	public static final int DEFAULT_PORT = 5222;
+
+	private final String domain;
+	private final String host;
+	private final int port;
+	private final int maxFails;
+
+	private AtomicInteger active = new AtomicInteger();
+	private AtomicInteger failures = new AtomicInteger();
+	private volatile boolean healthy = true;
+	private volatile boolean retired = false;
+	private String prefix;
+	private Counter connections;
+	private Counter errors;
+	private Counter probeFailures;
+	private Gauge activeGauge;
+	private Gauge healthyGauge;
+	private XMPPLogger logger = XMPPLogger.getInstance();
+
+	/**
+	 * One of the servers that handle a domain's clients.
+	 *
+	 * Keeps how many sessions are connected to it, for placing new ones, and
+	 * whether it is healthy. It is ejected from its pool after
+	 * <i>maxFails</i> failures in a row, be it of sessions connecting to it
+	 * or of health probes, and comes back with the first success.
+	 *
+	 * Its counters are published as upstream.&lt;domain&gt;.&lt;host:port&gt;
+	 * .connections, .errors, .probeFailures, .active and .healthy.
+	 *
+	 * @param domain
+	 *            Domain the endpoint serves, which goes in the stream header.
+	 * @param host
+	 * @param port
+	 * @param maxFails
+	 */
+
+	public Endpoint(String domain, String host, int port, int maxFails) {
+		this.domain = domain;
+		this.host = host;
+		this.port = port;
+		this.maxFails = Math.max(1, maxFails);
+		this.prefix = "upstream." + domain + "." + this + ".";
+		Metrics metrics = Metrics.getInstance();
+		connections = metrics.counter(prefix + "connections");
+		errors = metrics.counter(prefix + "errors");
+		probeFailures = metrics.counter(prefix + "probeFailures");
+		activeGauge = new Gauge() {
+			public long getValue() {
+				return active.get();
+			}
+		};
+		healthyGauge = new Gauge() {
+			public long getValue() {
+				return healthy ? 1 : 0;
+			}
+		};
+		metrics.gauge(prefix + "active", activeGauge);
+		metrics.gauge(prefix + "healthy", healthyGauge);
+	}
+
+	/**
+	 * Stops publishing the endpoint's metrics, once it is no longer part of
+	 * any pool. Sessions still on it keep being counted by the endpoint
+	 * itself.
+	 */
+
+	public void unregister() {
+		Metrics metrics = Metrics.getInstance();
+		metrics.remove(prefix + "connections", connections);
+		metrics.remove(prefix + "errors", errors);
+		metrics.remove(prefix + "probeFailures", probeFailures);
+		metrics.remove(prefix + "active", activeGauge);
+		metrics.remove(prefix + "healthy", healthyGauge);
+	}
+
+	/**
+	 * Marks the endpoint as no longer part of any pool, so no more streams
+	 * are opened to it. Sessions already on it are left alone.
+	 */
+
+	public void retire() {
+		retired = true;
+	}
+
+	public boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * Returns the prefix of the endpoint's metrics, the same for every
+	 * endpoint of a domain at the same host and port.
+	 */
+
+	public String getMetricsPrefix() {
+		return prefix;
+	}
+
+	public String getDomain() {
+		return domain;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * Returns how many sessions are placed on the endpoint.
+	 */
+
+	public int getActive() {
+		return active.get();
+	}
+
+	/**
+	 * Counts a session placed on the endpoint. Every call must be matched by
+	 * one to <i>closed</i>.
+	 */
+
+	public void opened() {
+		active.incrementAndGet();
+		connections.increment();
+	}
+
+	public void closed() {
+		active.decrementAndGet();
+	}
+
+	/**
+	 * Records that a connection to the endpoint, or a probe, succeeded.
+	 */
+
+	public void succeeded() {
+		failures.set(0);
+		if (!healthy) {
+			healthy = true;
+			logger.info("Upstream " + this + " of " + domain + " is back");
+		}
+	}
+
+	/**
+	 * Records that a session could not connect to the endpoint.
+	 */
+
+	public void failed() {
+		errors.increment();
+		failure();
+	}
+
+	/**
+	 * Records that a health probe could not connect to the endpoint.
+	 */
+
+	public void probeFailed() {
+		probeFailures.increment();
+		failure();
+	}
+
+	private void failure() {
+		if (failures.incrementAndGet() >= maxFails && healthy) {
+			healthy = false;
+			logger.warn("Upstream " + this + " of " + domain
+					+ " ejected after " + maxFails + " failures");
+		}
+	}
+
+	/**
+	 * Returns true if the endpoint is the given host and port.
+	 */
+
+	boolean isAt(String host, int port) {
+		return this.host.equals(host) && this.port == port;
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+}
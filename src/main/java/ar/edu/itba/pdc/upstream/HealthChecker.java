@@ -0,0 +1,203 @@
+package ar.edu.itba.pdc.upstream;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ar.edu.itba.pdc.logger.XMPPLogger;
+import ar.edu.itba.pdc.nio.HostResolver;
+import ar.edu.itba.pdc.nio.ResolveListener;
+
+public class HealthChecker implements Runnable {
+
+	private long interval;
+	private long timeout;
+	private volatile List<Endpoint> endpoints = Collections.emptyList();
+
+	private Selector selector;
+	private AtomicBoolean started = new AtomicBoolean(false);
+	/* Probes whose address was resolved, to be started by the checker */
+	private Queue<Probe> resolved = new ConcurrentLinkedQueue<Probe>();
+	/* Probes in progress, only touched by the checker thread */
+	private Map<Endpoint, Probe> probing = new HashMap<Endpoint, Probe>();
+	private XMPPLogger logger = XMPPLogger.getInstance();
+
+	/**
+	 * Probes the endpoints of the upstream pools every <i>interval</i>
+	 * milliseconds from a thread of its own, so pools stop sending sessions
+	 * to servers that are down and take them back once they answer again.
+	 *
+	 * A probe is a non blocking connect to the endpoint, which fails if it
+	 * is refused or does not complete within <i>timeout</i> milliseconds.
+	 * Every probe of a round runs at once, so a server that does not answer
+	 * delays no other.
+	 *
+	 * @param interval
+	 * @param timeout
+	 */
+
+	public HealthChecker(long interval, long timeout) {
+		this.interval = interval;
+		this.timeout = Math.min(timeout, interval);
+	}
+
+	/**
+	 * Sets the endpoints to probe from the next round on. The checker thread
+	 * is started the first time there is any.
+	 *
+	 * @param endpoints
+	 */
+
+	public void setEndpoints(Collection<Endpoint> endpoints) {
+		this.endpoints = new ArrayList<Endpoint>(endpoints);
+		if (!endpoints.isEmpty() && started.compareAndSet(false, true)) {
+			try {
+				selector = Selector.open();
+			} catch (IOException e) {
+				logger.error("Unable to start the upstream health checks");
+				return;
+			}
+			Thread t = new Thread(this, "upstream-health");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public void run() {
+		long nextRound = 0;
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (now >= nextRound) {
+				startRound();
+				nextRound = now + interval;
+			}
+			Probe probe;
+			while ((probe = resolved.poll()) != null)
+				connect(probe);
+			long wait = nextRound - now;
+			for (Iterator<Probe> it = probing.values().iterator(); it
+					.hasNext();) {
+				probe = it.next();
+				if (probe.deadline <= now) {
+					it.remove();
+					finish(probe, false);
+				} else {
+					wait = Math.min(wait, probe.deadline - now);
+				}
+			}
+			try {
+				selector.select(Math.max(1, wait));
+			} catch (IOException e) {
+				logger.error("Upstream health checks stopped: "
+						+ e.getMessage());
+				return;
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				probe = (Probe) key.attachment();
+				boolean connected;
+				try {
+					connected = probe.channel.finishConnect();
+				} catch (IOException e) {
+					connected = false;
+				}
+				probing.remove(probe.endpoint);
+				finish(probe, connected);
+			}
+		}
+	}
+
+	/**
+	 * Starts probing every endpoint that is not still being probed from the
+	 * last round, resolving its address first.
+	 */
+
+	private void startRound() {
+		for (final Endpoint endpoint : endpoints) {
+			if (probing.containsKey(endpoint))
+				continue;
+			final Probe probe = new Probe(endpoint);
+			probe.deadline = System.currentTimeMillis() + timeout;
+			probing.put(endpoint, probe);
+			HostResolver.getInstance().resolve(endpoint.getHost(),
+					new ResolveListener() {
+						public void resolved(InetAddress address) {
+							probe.address = address;
+							resolved.add(probe);
+							selector.wakeup();
+						}
+
+						public void failed() {
+							resolved.add(probe);
+							selector.wakeup();
+						}
+					});
+		}
+	}
+
+	private void connect(Probe probe) {
+		if (probing.get(probe.endpoint) != probe)
+			return;
+		if (probe.address == null) {
+			probing.remove(probe.endpoint);
+			finish(probe, false);
+			return;
+		}
+		try {
+			probe.channel = SocketChannel.open();
+			probe.channel.configureBlocking(false);
+			if (probe.channel.connect(new InetSocketAddress(probe.address,
+					probe.endpoint.getPort()))) {
+				probing.remove(probe.endpoint);
+				finish(probe, true);
+			} else {
+				probe.channel.register(selector, SelectionKey.OP_CONNECT,
+						probe);
+			}
+		} catch (IOException e) {
+			probing.remove(probe.endpoint);
+			finish(probe, false);
+		}
+	}
+
+	private void finish(Probe probe, boolean healthy) {
+		if (healthy)
+			probe.endpoint.succeeded();
+		else
+			probe.endpoint.probeFailed();
+		if (probe.channel != null) {
+			try {
+				probe.channel.close();
+			} catch (IOException e) {
+				logger.error("Unable to close health probe");
+			}
+		}
+	}
+
+	private static class Probe {
+
+		final Endpoint endpoint;
+		volatile InetAddress address;
+		SocketChannel channel;
+		long deadline;
+
+		Probe(Endpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package ar.edu.itba.pdc.upstream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ar.edu.itba.pdc.upstream.enumerations.Balancing;
+
+public class UpstreamPool {
+
+	/* Points every endpoint has on the hash ring */
+	private static final int VIRTUAL_NODES = 64;
+
+	private final String domain;
+	private final List<Endpoint> endpoints;
+	private final TreeMap<Integer, Endpoint> ring = new TreeMap<Integer, Endpoint>();
+	/* Where ties between equally loaded endpoints start to be broken */
+	private AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * The servers a domain's clients can be sent to, and how a new session
+	 * is placed on one of them.
+	 *
+	 * Only healthy endpoints are picked; if none is, every endpoint is, since
+	 * refusing every client would be worse than trying a server that may
+	 * have come back.
+	 *
+	 * @param domain
+	 * @param endpoints
+	 *            At least one.
+	 */
+
+	public UpstreamPool(String domain, List<Endpoint> endpoints) {
+		this.domain = domain;
+		this.endpoints = Collections.unmodifiableList(new ArrayList<Endpoint>(
+				endpoints));
+		for (Endpoint endpoint : endpoints)
+			for (int i = 0; i < VIRTUAL_NODES; i++)
+				ring.put(hash(endpoint + "#" + i), endpoint);
+	}
+
+	/**
+	 * Parses a comma separated list of host[:port] into a pool. Endpoints of
+	 * the previous pool of the domain that are still in the list are kept,
+	 * along with their sessions and counters.
+	 *
+	 * @param domain
+	 * @param list
+	 * @param previous
+	 *            The domain's pool until now, or null.
+	 * @param maxFails
+	 *            Failures in a row that eject a new endpoint.
+	 * @return The pool, or null if the list has no valid endpoint.
+	 */
+
+	public static UpstreamPool parse(String domain, String list,
+			UpstreamPool previous, int maxFails) {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		for (String address : list.split(",")) {
+			address = address.trim();
+			if (address.isEmpty())
+				continue;
+			String host = address;
+			int port = Endpoint.DEFAULT_PORT;
+			int colon = address.lastIndexOf(':');
+			if (colon != -1) {
+				host = address.substring(0, colon).trim();
+				try {
+					port = Integer.parseInt(address.substring(colon + 1)
+							.trim());
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			}
+			if (host.isEmpty() || port <= 0 || port > 65535)
+				continue;
+			Endpoint endpoint = (previous == null) ? null : previous.find(
+					host, port);
+			endpoints.add((endpoint != null) ? endpoint : new Endpoint(
+					domain, host, port, maxFails));
+		}
+		return endpoints.isEmpty() ? null : new UpstreamPool(domain,
+				endpoints);
+	}
+
+	public String getDomain() {
+		return domain;
+	}
+
+	public List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * Picks the endpoint a new session goes to.
+	 *
+	 * With least connections it is the one with the fewest sessions. With
+	 * consistent hashing it is the one the user hashes to, so a user keeps
+	 * going to the same server and adding or removing one only moves the
+	 * users of that server; sessions of unknown users fall back to least
+	 * connections.
+	 *
+	 * @param user
+	 *            Username, or null before it is known.
+	 * @param balancing
+	 */
+
+	public Endpoint select(String user, Balancing balancing) {
+		if (endpoints.size() == 1)
+			return endpoints.get(0);
+		boolean anyHealthy = false;
+		for (Endpoint endpoint : endpoints)
+			anyHealthy |= endpoint.isHealthy();
+		if (balancing == Balancing.consistentHashing && user != null)
+			return hashed(user, anyHealthy);
+		return leastConnected(anyHealthy);
+	}
+
+	private Endpoint leastConnected(boolean healthyOnly) {
+		int size = endpoints.size();
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+		Endpoint best = null;
+		for (int i = 0; i < size; i++) {
+			Endpoint endpoint = endpoints.get((start + i) % size);
+			if (healthyOnly && !endpoint.isHealthy())
+				continue;
+			if (best == null || endpoint.getActive() < best.getActive())
+				best = endpoint;
+		}
+		return best;
+	}
+
+	/**
+	 * Walks the ring clockwise from the user's hash up to the first
+	 * endpoint that can be used.
+	 */
+
+	private Endpoint hashed(String user, boolean healthyOnly) {
+		SortedMap<Integer, Endpoint> tail = ring.tailMap(hash(user));
+		for (Endpoint endpoint : tail.values())
+			if (!healthyOnly || endpoint.isHealthy())
+				return endpoint;
+		for (Map.Entry<Integer, Endpoint> entry : ring.entrySet())
+			if (!healthyOnly || entry.getValue().isHealthy())
+				return entry.getValue();
+		return endpoints.get(0);
+	}
+
+	private Endpoint find(String host, int port) {
+		for (Endpoint endpoint : endpoints)
+			if (endpoint.isAt(host, port))
+				return endpoint;
+		return null;
+	}
+
+	/**
+	 * FNV-1a, followed by a final mix so that keys differing only in their
+	 * last characters, as the virtual nodes do, spread over the whole ring.
+	 */
+
+	private static int hash(String key) {
+		int h = 0x811c9dc5;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,6 @@
+package ar.edu.itba.pdc.upstream.enumerations;
+
+public enum Balancing {
+	leastConnections,
+	consistentHashing
+}
@@ -1,23 +1,50 @@
 package ar.edu.itba.pdc.utils;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ar.edu.itba.pdc.logger.XMPPLogger;
 
 public class ConfigurationCommands {
-	private Properties props;
-	private FileInputStream fis;
 
-	private static ConfigurationCommands instance;
+	private static final String FILE = "/src/main/java/ar/edu/itba/pdc/resources/parsedcommands.properties";
+
+	/* Changes made within this time are written in a single save */
+	private static final long SAVE_DELAY = 500;
+
+	private volatile ConfigurationSnapshot snapshot;
+	private List<ConfigurationListener> listeners = new CopyOnWriteArrayList<ConfigurationListener>();
+
+	private ScheduledExecutorService writer;
+	private AtomicBoolean savePending = new AtomicBoolean(false);
+	private Runnable save = new Runnable() {
+		public void run() {
+			savePending.set(false);
+			write(snapshot);
+		}
+	};
+
+	private static ConfigurationCommands instance = new ConfigurationCommands();
 	private XMPPLogger logger = XMPPLogger.getInstance();
 
 	public static ConfigurationCommands getInstance() {
-		if (instance == null)
-			instance = new ConfigurationCommands();
 		return instance;
 	}
 
@@ -27,81 +54,179 @@ public class ConfigurationCommands {
 	 */
 
 	private ConfigurationCommands() {
-		this.props = new Properties();
+		Properties props = new Properties();
+		InputStream fis = null;
 		try {
-			String current = new java.io.File(".").getCanonicalPath();
-			this.fis = new FileInputStream(
-					current
-							+ "/src/main/java/ar/edu/itba/pdc/resources/parsedcommands.properties");
+			fis = new FileInputStream(getFile());
 			props.load(fis);
-
 		} catch (Exception e) {
 			logger.warn("Error loading properties");
+		} finally {
+			close(fis);
 		}
+		Map<String, String> properties = new HashMap<String, String>();
+		for (String name : props.stringPropertyNames())
+			properties.put(name, props.getProperty(name));
+		this.snapshot = new ConfigurationSnapshot(0, properties);
+
+		this.writer = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "configuration-writer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		/* Otherwise a change made shortly before exiting would be lost */
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				flush();
+			}
+		});
 	}
 
 	/**
-	 * Returns the value of a given property or null if it is not in the
-	 * properties file.
-	 * 
+	 * Returns the value of a given property or an empty string if it is not
+	 * in the properties file.
+	 *
 	 * @param property
 	 * @return
 	 */
 
 	public String getProperty(String property) {
-		if (props.get(property) == null)
-			return "";
-		return props.get(property).toString();
+		String value = snapshot.get(property);
+		return (value == null) ? "" : value;
+	}
+
+	/**
+	 * Returns the current configuration. It never changes, later changes
+	 * produce a new snapshot.
+	 */
+
+	public ConfigurationSnapshot getSnapshot() {
+		return snapshot;
 	}
 
 	/**
 	 * Sets the value of a given property.
-	 * 
+	 *
+	 * Publishes a new snapshot, notifies every listener and schedules the
+	 * file to be saved. Nothing happens if the property already had that
+	 * value.
+	 *
+	 * Listeners are notified while the change is still being made, so when
+	 * two threads change the same property they hear of both changes in the
+	 * order the snapshots were published, and end up with the value the
+	 * snapshot and the file have.
+	 *
 	 * @param property
 	 * @param value
 	 */
 
 	public void setProperty(String property, String value) {
-		logger.info("Applied " + property + " to " + value);
-		props.setProperty(property, value);
+		synchronized (this) {
+			if (value.equals(snapshot.get(property)))
+				return;
+			snapshot = snapshot.with(property, value);
+			logger.info("Applied " + property + " to " + value);
+			for (ConfigurationListener listener : listeners)
+				listener.propertyChanged(property, value);
+		}
+		scheduleSave();
 	}
 
 	/**
 	 * Returns true if the file resources/parsedcommands.properties contains the
 	 * given property
-	 * 
+	 *
 	 * @param property
 	 * @return
 	 */
 
 	public boolean hasProperty(String property) {
-		return props.containsKey(property);
+		return snapshot.contains(property);
 	}
 
 	/**
-	 * Commits the local changes back to the properties file.
+	 * Registers a listener to be told about every property change.
+	 *
+	 * @param listener
 	 */
 
-	public void saveFile() {
-		String current = "";
-		FileOutputStream ops = null;
+	public void addListener(ConfigurationListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Schedules the properties file to be saved in the background. Every
+	 * change made before the save starts is written by it.
+	 */
+
+	private void scheduleSave() {
+		if (!savePending.compareAndSet(false, true))
+			return;
 		try {
-			current = new java.io.File(".").getCanonicalPath();
-		} catch (IOException e1) {
-			e1.printStackTrace();
+			writer.schedule(save, SAVE_DELAY, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			/* Shutting down, the save would never run */
+			savePending.set(false);
+			write(snapshot);
 		}
+	}
+
+	/**
+	 * Drops the scheduled save, if any, waits for one in progress and writes
+	 * whatever it did not. Called when the proxy exits.
+	 */
+
+	private void flush() {
+		writer.shutdownNow();
 		try {
-			ops = new FileOutputStream(
-					current
-							+ "/src/main/java/ar/edu/itba/pdc/resources/parsedcommands.properties",
-					false);
-		} catch (FileNotFoundException e) {
-			logger.warn("Error setting properties");
+			writer.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			return;
 		}
+		if (savePending.getAndSet(false))
+			write(snapshot);
+	}
+
+	/**
+	 * Commits the given snapshot back to the properties file. It is written
+	 * to a temporary file first and then moved over the old one, so the file
+	 * is never left half written. Saves never overlap, as the one made on
+	 * exit may start while another is still running.
+	 */
+
+	private synchronized void write(ConfigurationSnapshot toSave) {
+		File file = getFile();
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream ops = null;
 		try {
-			props.store(ops, "Commands");
+			ops = new FileOutputStream(temp, false);
+			toSave.toProperties().store(ops, "Commands");
+			ops.close();
+			ops = null;
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
 		} catch (IOException e) {
 			logger.warn("Error setting properties");
+		} finally {
+			close(ops);
+		}
+	}
+
+	private File getFile() {
+		return new File(new File(".").getAbsoluteFile().getParentFile(), FILE);
+	}
+
+	private void close(java.io.Closeable stream) {
+		if (stream == null)
+			return;
+		try {
+			stream.close();
+		} catch (IOException e) {
+			logger.warn("Error closing properties file");
 		}
 	}
 
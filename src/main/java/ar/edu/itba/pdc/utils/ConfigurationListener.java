@@ -0,0 +1,11 @@
+package ar.edu.itba.pdc.utils;
+
+public interface ConfigurationListener {
+
+	/**
+	 * Called every time a property takes a new value, after the new
+	 * configuration snapshot was published.
+	 */
+
+	public void propertyChanged(String property, String value);
+}
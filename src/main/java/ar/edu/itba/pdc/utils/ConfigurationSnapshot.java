@@ -0,0 +1,63 @@
+package ar.edu.itba.pdc.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class ConfigurationSnapshot {
+
+	private final long version;
+	private final Map<String, String> properties;
+
+	/**
+	 * Creates an immutable copy of the given properties.
+	 *
+	 * @param version
+	 *            Incremented by one on every change.
+	 * @param properties
+	 */
+
+	ConfigurationSnapshot(long version, Map<String, String> properties) {
+		this.version = version;
+		this.properties = Collections
+				.unmodifiableMap(new HashMap<String, String>(properties));
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the value of a property, or null if it is not set.
+	 *
+	 * @param property
+	 */
+
+	public String get(String property) {
+		return properties.get(property);
+	}
+
+	public boolean contains(String property) {
+		return properties.containsKey(property);
+	}
+
+	/**
+	 * Returns the next snapshot, with the given property changed.
+	 *
+	 * @param property
+	 * @param value
+	 */
+
+	ConfigurationSnapshot with(String property, String value) {
+		Map<String, String> changed = new HashMap<String, String>(properties);
+		changed.put(property, value);
+		return new ConfigurationSnapshot(version + 1, changed);
+	}
+
+	Properties toProperties() {
+		Properties props = new Properties();
+		props.putAll(properties);
+		return props;
+	}
+}